@@ -0,0 +1,75 @@
+package vizardous.trackmate.export;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the {@link ExportBenchmark}s with the GC profiler and reports the
+ * throughput in spots per second and the allocations in bytes per spot.
+ * Frame benchmarks are reported per frame instead.
+ * <p>
+ * JMH command line options are passed on, e.g.
+ *
+ * <pre>
+ * java -jar benchmarks.jar -p shape=BINARY -p spots=1000000 -p format=GZIP
+ * </pre>
+ */
+public class BenchmarkRunner {
+
+	public static void main(final String[] args) throws RunnerException {
+		Options options;
+		try {
+			options = new OptionsBuilder()
+					.parent(new CommandLineOptions(args))
+					.include(ExportBenchmark.class.getName())
+					.addProfiler(GCProfiler.class)
+					.build();
+		} catch (CommandLineOptionException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+			return;
+		}
+
+		Collection<RunResult> results = new Runner(options).run();
+
+		System.out.println();
+		System.out.println(String.format(Locale.US, "%-22s %-7s %-8s %9s %-8s %15s %12s",
+				"Benchmark", "Shape", "Features", "Spots", "Format", "Units/s", "Bytes/unit"));
+		for (RunResult result : results) {
+			String benchmark = result.getParams().getBenchmark();
+			benchmark = benchmark.substring(benchmark.lastIndexOf('.') + 1);
+
+			SyntheticLineages.Shape shape = SyntheticLineages.Shape.valueOf(result.getParams().getParam("shape"));
+			int spots = SyntheticLineages.countSpots(shape, Integer.parseInt(result.getParams().getParam("spots")));
+
+			// Operations of the model benchmarks cover all spots
+			boolean perModel = !benchmark.equals("generateCellForSpot") && !benchmark.equals("createFrame");
+			int unitsPerOp = perModel ? spots : 1;
+			String unit = benchmark.equals("createFrame") ? "frames" : "spots";
+
+			double throughput = result.getPrimaryResult().getScore() * unitsPerOp;
+			double allocated = Double.NaN;
+			for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+				if (secondary.getKey().endsWith("gc.alloc.rate.norm")) {
+					allocated = secondary.getValue().getScore() / unitsPerOp;
+				}
+			}
+
+			System.out.println(String.format(Locale.US, "%-22s %-7s %-8s %9d %-8s %15.0f %12.1f  (%s)",
+					benchmark, shape, result.getParams().getParam("features"), spots,
+					result.getParams().getParam("format"), throughput, allocated, unit));
+		}
+	}
+
+}
@@ -0,0 +1,202 @@
+package vizardous.trackmate.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import vizardous.trackmate.io.OutputFormat;
+import vizardous.trackmate.io.XmlWriter;
+
+/**
+ * Benchmarks of the phases of {@link LineageExporter} on synthetic lineages.
+ * <ul>
+ * <li>{@code export}: the complete export including both files</li>
+ * <li>{@code marshallModel}: traversal and serialization into memory</li>
+ * <li>{@code generateCellForSpot}: a single {@code <cell>}, one spot per
+ * operation</li>
+ * <li>{@code createFrame}: the header of a single {@code <frame>}, one frame
+ * per operation</li>
+ * <li>{@code writeMeta}: writing the marshalled metaXML to a file</li>
+ * </ul>
+ * Use {@link BenchmarkRunner} to get the results per spot.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportBenchmark {
+
+	/**
+	 * The exported model and the export settings.
+	 */
+	@State(Scope.Benchmark)
+	public static class Lineages {
+		@Param({ "BINARY", "LINEAR", "SMALL" })
+		public SyntheticLineages.Shape shape;
+
+		@Param({ "100000" })
+		public int spots;
+
+		@Param({ "DEFAULT" })
+		public SyntheticLineages.Features features;
+
+		/** PRETTY, COMPACT or GZIP */
+		@Param({ "PRETTY" })
+		public String format;
+
+		/** Number of marshalling threads, 0 for all processors */
+		@Param({ "0" })
+		public int threads;
+
+		SyntheticLineages lineages;
+		Model model;
+		FeatureMapping mapping;
+		OutputFormat outputFormat;
+		ExportSettings settings;
+		LineageExporter exporter;
+		File folder;
+		File filePhylo;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			lineages = SyntheticLineages.build(shape, spots, features, 42L);
+			model = lineages.getModel();
+			mapping = features.createMapping();
+			outputFormat = new OutputFormat(!format.equals("PRETTY"), format.equals("GZIP"));
+			settings = new ExportSettings.Builder()
+					.projectName("benchmark")
+					.nframes(lineages.getNFrames())
+					.numThreads(threads > 0 ? threads : Runtime.getRuntime().availableProcessors())
+					.featureMapping(mapping)
+					.format(outputFormat)
+					.build();
+			exporter = new LineageExporter(settings);
+
+			folder = File.createTempFile("export-benchmark", "");
+			if (!folder.delete() || !folder.mkdir()) {
+				throw new IOException("Could not create " + folder);
+			}
+			filePhylo = outputFormat.withExtension(new File(folder, "tree.xml"));
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			File[] files = folder.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			folder.delete();
+		}
+
+		ExportRun newRun() {
+			return new ExportRun(settings, Logger.VOID_LOGGER);
+		}
+	}
+
+	/**
+	 * A prepared exporter and the spots and frames that are cycled through.
+	 */
+	@State(Scope.Thread)
+	public static class Cells {
+		ExportRun run;
+		Spot[] spots;
+		int nFrames;
+		Double[] values;
+		StringBuilder buffer;
+		XmlWriter writer;
+		int next = 0;
+
+		@Setup(Level.Trial)
+		public void setUp(final Lineages lineages) throws IOException {
+			run = lineages.newRun();
+			run.prepare(ModelView.of(lineages.model));
+			values = lineages.settings.getFeatureWriter().newValues();
+
+			List<Spot> all = new ArrayList<Spot>(lineages.lineages.getNSpots());
+			Iterator<Spot> iter = lineages.model.getSpots().iterator(true);
+			while (iter.hasNext()) {
+				all.add(iter.next());
+			}
+			spots = all.toArray(new Spot[all.size()]);
+
+			nFrames = lineages.lineages.getNFrames();
+
+			buffer = new StringBuilder(1 << 20);
+			writer = lineages.outputFormat.newXmlWriter(buffer, 2);
+		}
+	}
+
+	/**
+	 * An exporter whose model has been marshalled.
+	 */
+	@State(Scope.Benchmark)
+	public static class Marshalled {
+		ExportRun run;
+		File fileMeta;
+
+		@Setup(Level.Trial)
+		public void setUp(final Lineages lineages) throws IOException {
+			run = lineages.newRun();
+			run.prepare(ModelView.of(lineages.model));
+			run.marshallModel(ModelView.of(lineages.model));
+			fileMeta = LineageExporter.getMetaFile(lineages.filePhylo);
+		}
+	}
+
+	@Benchmark
+	public void export(final Lineages lineages) throws IOException {
+		lineages.exporter.export(lineages.model, lineages.filePhylo);
+	}
+
+	@Benchmark
+	public Object marshallModel(final Lineages lineages) throws IOException {
+		ExportRun run = lineages.newRun();
+		run.prepare(ModelView.of(lineages.model));
+		run.marshallModel(ModelView.of(lineages.model));
+		return run;
+	}
+
+	@Benchmark
+	public int generateCellForSpot(final Cells cells) throws IOException {
+		Spot spot = cells.spots[cells.next++ % cells.spots.length];
+		if (cells.buffer.length() > 1 << 20) {
+			cells.buffer.setLength(0);
+		}
+		cells.run.generateCellForSpot(spot, 0, cells.values, null, cells.writer);
+		return cells.buffer.length();
+	}
+
+	@Benchmark
+	public Object createFrame(final Cells cells) throws IOException {
+		return cells.run.createFrame(cells.next++ % cells.nFrames);
+	}
+
+	@Benchmark
+	public void writeMeta(final Marshalled marshalled) throws IOException {
+		marshalled.run.writeMeta(marshalled.fileMeta);
+	}
+
+}
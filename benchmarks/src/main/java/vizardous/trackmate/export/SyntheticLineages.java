@@ -0,0 +1,196 @@
+package vizardous.trackmate.export;
+
+import java.util.Random;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Builds TrackMate {@link Model}s with synthetic lineages. The models are
+ * reproducible: the same parameters always yield the same spots, features
+ * and edges.
+ */
+public final class SyntheticLineages {
+
+	/**
+	 * The shape of the generated tracks.
+	 */
+	public enum Shape {
+		/** Lineages in which every cell divides in every frame */
+		BINARY,
+		/** Long tracks without divisions */
+		LINEAR,
+		/** Many tracks of a single division, i.e. three cells */
+		SMALL
+	}
+
+	/**
+	 * The features of the generated spots and the matching mapping.
+	 */
+	public enum Features {
+		/** Positions only, no cell features are exported */
+		NONE,
+		/** Length, area, YFP and Crimson as in {@link FeatureMapping#createDefault()} */
+		DEFAULT,
+		/** The default features and eight additional fluorescence channels */
+		WIDE;
+
+		public FeatureMapping createMapping() {
+			switch (this) {
+			case NONE:
+				return new FeatureMapping();
+			case DEFAULT:
+				return FeatureMapping.createDefault();
+			default:
+				FeatureMapping mapping = FeatureMapping.createDefault();
+				for (int c = 0; c < EXTRA_CHANNELS; c++) {
+					mapping.addChannel("channel" + c, "au", 2, new String[] { "CHANNEL" + c + "_MEAN" }, 4, "CHANNEL" + c + "_STDDEV");
+				}
+				return mapping;
+			}
+		}
+	}
+
+	/** Number of frames in which the first cells of BINARY and SMALL tracks appear */
+	private static final int ROOT_FRAMES = 50;
+	/** Number of generations of a BINARY lineage, i.e. 1023 cells */
+	private static final int GENERATIONS = 10;
+	/** Number of cells of a LINEAR track */
+	private static final int LINEAR_LENGTH = 2000;
+	private static final int EXTRA_CHANNELS = 8;
+
+	private final Model model = new Model();
+	private final Random random;
+	private final FeatureMapping mapping;
+	private int nframes = 0;
+	private int nspots = 0;
+
+	private SyntheticLineages(final long seed, final Features features) {
+		this.random = new Random(seed);
+		this.mapping = features.createMapping();
+	}
+
+	/**
+	 * Builds a model with at least the provided number of spots.
+	 *
+	 * @param shape
+	 *            The shape of the tracks
+	 * @param spots
+	 *            The number of spots, rounded up to complete tracks
+	 * @param features
+	 *            The features of the spots
+	 * @param seed
+	 *            Seed of the positions and feature values
+	 * @return The generated lineages.
+	 */
+	public static SyntheticLineages build(final Shape shape, final int spots, final Features features, final long seed) {
+		SyntheticLineages lineages = new SyntheticLineages(seed, features);
+		lineages.model.beginUpdate();
+		try {
+			for (int track = 0; lineages.nspots < spots; track++) {
+				switch (shape) {
+				case BINARY:
+					lineages.addBinary(track % ROOT_FRAMES);
+					break;
+				case LINEAR:
+					lineages.addLinear();
+					break;
+				case SMALL:
+					lineages.addSmall(track % ROOT_FRAMES);
+					break;
+				}
+			}
+		} finally {
+			lineages.model.endUpdate();
+		}
+		lineages.model.getSpots().setVisible(true);
+		return lineages;
+	}
+
+	/**
+	 * @return The number of spots that {@link #build(Shape, int, Features, long)}
+	 *         generates, i.e. the provided number rounded up to complete
+	 *         tracks.
+	 */
+	public static int countSpots(final Shape shape, final int spots) {
+		int trackSize;
+		switch (shape) {
+		case BINARY:
+			trackSize = (1 << GENERATIONS) - 1;
+			break;
+		case LINEAR:
+			trackSize = LINEAR_LENGTH;
+			break;
+		default:
+			trackSize = 3;
+			break;
+		}
+		return Math.max(1, (spots + trackSize - 1) / trackSize) * trackSize;
+	}
+
+	public Model getModel() {
+		return model;
+	}
+
+	/**
+	 * @return The number of frames, i.e. the last frame with spots plus one.
+	 */
+	public int getNFrames() {
+		return nframes;
+	}
+
+	/**
+	 * @return The number of spots of the model.
+	 */
+	public int getNSpots() {
+		return nspots;
+	}
+
+	private void addBinary(final int firstFrame) {
+		Spot[] generation = { addSpot(firstFrame) };
+		for (int g = 1; g < GENERATIONS; g++) {
+			Spot[] next = new Spot[2 * generation.length];
+			for (int i = 0; i < next.length; i++) {
+				next[i] = addSpot(firstFrame + g);
+				model.addEdge(generation[i / 2], next[i], 1d);
+			}
+			generation = next;
+		}
+	}
+
+	private void addLinear() {
+		Spot previous = addSpot(0);
+		for (int frame = 1; frame < LINEAR_LENGTH; frame++) {
+			Spot spot = addSpot(frame);
+			model.addEdge(previous, spot, 1d);
+			previous = spot;
+		}
+	}
+
+	private void addSmall(final int firstFrame) {
+		Spot mother = addSpot(firstFrame);
+		model.addEdge(mother, addSpot(firstFrame + 1), 1d);
+		model.addEdge(mother, addSpot(firstFrame + 1), 1d);
+	}
+
+	private Spot addSpot(final int frame) {
+		Spot spot = new Spot(random.nextDouble() * 500d, random.nextDouble() * 500d, 0d, 1d, 1d);
+
+		// Every mapped feature gets a value
+		for (FeatureMapping.Scalar scalar : mapping.getScalars()) {
+			spot.putFeature(scalar.featureKeys[0], 1d + random.nextDouble() * 8d);
+		}
+		for (FeatureMapping.Channel channel : mapping.getChannels()) {
+			spot.putFeature(channel.meanKeys[0], random.nextDouble() * 1000d);
+			if (channel.stdDevKey != null) {
+				spot.putFeature(channel.stdDevKey, random.nextDouble() * 50d);
+			}
+		}
+
+		model.addSpotTo(spot, frame);
+		nframes = Math.max(nframes, frame + 1);
+		nspots++;
+		return spot;
+	}
+
+}
@@ -0,0 +1,434 @@
+package vizardous.trackmate.export;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.features.FeatureFilter;
+import fiji.plugin.trackmate.io.TmXmlReader;
+import vizardous.trackmate.io.OutputFormat;
+
+/**
+ * Headless export of saved TrackMate sessions. Each TrackMate XML file is
+ * loaded with {@link TmXmlReader} and exported with a
+ * {@link LineageExporter}; no Swing components are involved. Several files
+ * can be exported concurrently.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * java vizardous.trackmate.export.BatchExport [options] &lt;file or folder&gt;...
+ *   -d, --destination &lt;folder&gt;   Folder for the exported files (required)
+ *   -n, --name &lt;name&gt;            Project name (default: "default")
+ *   -i, --interval &lt;minutes&gt;     Imaging interval (default: 8)
+ *   -w, --workers &lt;count&gt;        Number of concurrently exported files (default: 1)
+ *   -f, --features &lt;file&gt;        Feature mapping file (default: length, area, YFP, Crimson)
+ *   -c, --compact                 Write XML without indentation
+ *   -z, --gzip                    Compress the exported files
+ *   -u, --incremental             Only marshal tracks that changed since the last export
+ *   -m, --metrics                 Write timing and memory metrics as JSON next to the exported files
+ *   -b, --cell-table              Write the cells to a binary columnar file next to the exported files
+ *   -s, --statistics              Summarize the features of each frame's population in the metaXML
+ *   -x, --index                   Write the byte offsets of all frames and phylogenies to an index file
+ *   -T, --tracks-per-shard &lt;n&gt;  Split the phyloXML into files of n tracks (default: 0, a single file)
+ *   -F, --frames-per-shard &lt;n&gt;  Split the metaXML into files of n frames (default: 0, a single file)
+ *   -t, --tracks &lt;ids&gt;           Only export the tracks with these comma-separated IDs
+ *   -p, --root-filter &lt;filter&gt;   Only export tracks whose first spot passes the filter, e.g. QUALITY&gt;30 (repeatable)
+ *   -r, --frames &lt;first-last&gt;    Only export the spots within this range of frames
+ *   -o, --contours &lt;inline|file&gt; Export the cell outlines as ImageJ ROIs to the metaXML or to a separate file
+ *   -P, --pixel-size &lt;um&gt;        Pixel size of the outlines (default: 1)
+ *   -M, --memory-budget &lt;MB&gt;     Spill metaXML frames beyond this memory to temporary files (default: 0, no limit)
+ * </pre>
+ *
+ * Folders are searched (non-recursively) for XML files. The exported
+ * phyloXML is named after the TrackMate file, the metaXML gets an additional
+ * {@code _meta} suffix. Of several files with the same name, only the first
+ * is exported. Incremental exports keep a {@code .fragments} cache
+ * next to them. The binary cell table is named {@code _cells.bin}, see
+ * {@link CellTable}. Sharded exports are listed in a {@code _manifest.xml}.
+ * Lineages that are cut by the range of frames are pruned, see
+ * {@link ExportSettings.Builder#frameRange(int, int)}. Outlines in a separate
+ * file are written to {@code _contours.bin}, see {@link ContourFile}. The
+ * index of an export is named {@code _index.bin}, see {@link ExportIndex}.
+ */
+public class BatchExport {
+
+	public static final String DEFAULT_PROJECT_NAME = "default";
+	public static final double DEFAULT_INTERVAL = 8d;
+
+	private final LineageExporter exporter;
+	private final File destination;
+	private final int numWorkers;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+	/**
+	 * @param settings
+	 *            The settings of all exports. The number of frames should be
+	 *            derived from the spots, since the images are not loaded.
+	 * @param destination
+	 *            The folder to which the files are exported
+	 * @param numWorkers
+	 *            The number of files that are exported concurrently
+	 */
+	public BatchExport(final ExportSettings settings, final File destination, final int numWorkers) {
+		if (numWorkers < 1) {
+			throw new IllegalArgumentException("At least one worker is required");
+		}
+		this.exporter = new LineageExporter(settings);
+		this.destination = destination;
+		this.numWorkers = numWorkers;
+	}
+
+	/**
+	 * Exports all provided TrackMate files. Failures are reported and do not
+	 * stop the export of the remaining files. Files that would be exported to
+	 * the same destination, e.g. files of the same name in different folders,
+	 * are reported as failures before any file is exported; only the first of
+	 * them is exported. A file that is listed more than once is exported once.
+	 *
+	 * @param inputs
+	 *            TrackMate XML files
+	 * @return The number of files that could not be exported.
+	 */
+	public int export(final List<File> inputs) {
+		if (!destination.isDirectory() && !destination.mkdirs()) {
+			System.err.println("Could not create destination folder " + destination);
+			return inputs.size();
+		}
+
+		// Concurrent exports to the same files would overwrite each other
+		int failures = 0;
+		boolean[] rejected = new boolean[inputs.size()];
+		Map<File, File> exportedFrom = new HashMap<File, File>();
+		for (int i = 0; i < inputs.size(); i++) {
+			File input = inputs.get(i);
+			try {
+				File filePhylo = getPhyloFile(input).getCanonicalFile();
+				File previous = exportedFrom.get(filePhylo);
+				if (previous != null && previous.getCanonicalFile().equals(input.getCanonicalFile())) {
+					System.out.println(input + ": Listed more than once. Skipping.");
+					rejected[i] = true;
+					continue;
+				} else if (previous != null) {
+					throw new IOException("Exporting to " + filePhylo + " would overwrite the export of " + previous);
+				}
+				exportedFrom.put(filePhylo, input);
+			} catch (IOException e) {
+				System.err.println("Trouble exporting " + input + ":\n" + e.getMessage());
+				rejected[i] = true;
+				failures++;
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>(inputs.size());
+			for (int i = 0; i < inputs.size(); i++) {
+				if (rejected[i]) {
+					results.add(null);
+					continue;
+				}
+				final File input = inputs.get(i);
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						exportFile(input);
+						return null;
+					}
+				}));
+			}
+
+			for (int i = 0; i < inputs.size(); i++) {
+				if (rejected[i]) {
+					continue;
+				}
+				try {
+					results.get(i).get();
+				} catch (ExecutionException e) {
+					System.err.println("Trouble exporting " + inputs.get(i) + ":\n" + e.getCause().getMessage());
+					failures++;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					for (int j = i; j < inputs.size(); j++) {
+						if (!rejected[j]) {
+							failures++;
+						}
+					}
+					return failures;
+				}
+			}
+			return failures;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Exports a single TrackMate file to the destination folder.
+	 *
+	 * @param input
+	 *            A TrackMate XML file
+	 */
+	public void exportFile(final File input) throws IOException {
+		TmXmlReader reader = new TmXmlReader(input);
+		if (!reader.isReadingOk()) {
+			throw new IOException(reader.getErrorMessage());
+		}
+
+		Model model = reader.getModel();
+		if (model.getTrackModel().nTracks(true) == 0) {
+			System.out.println(input + ": No visible track found. Skipping.");
+			return;
+		}
+
+		File filePhylo = getPhyloFile(input);
+		if (filePhylo.getCanonicalFile().equals(input.getCanonicalFile())) {
+			throw new IOException("Exporting to " + filePhylo + " would overwrite the TrackMate file");
+		}
+
+		// All workers share the exporter
+		exporter.export(model, filePhylo);
+		System.out.println(input + ": Exported to " + filePhylo);
+	}
+
+	/**
+	 * Derives the exported phyloXML from the name of a TrackMate file. All
+	 * other exported files are named after the phyloXML.
+	 *
+	 * @param input
+	 *            A TrackMate XML file
+	 * @return The phyloXML in the destination folder.
+	 */
+	private File getPhyloFile(final File input) {
+		String filename = input.getName();
+		if (filename.lastIndexOf(".") > 0) {
+			filename = filename.substring(0, filename.lastIndexOf("."));
+		}
+		return exporter.getSettings().getFormat().withExtension(new File(destination, filename + ".xml"));
+	}
+
+	/**
+	 * Expands folders to the XML files they contain.
+	 *
+	 * @param paths
+	 *            Files or folders
+	 * @return All TrackMate files, folder contents are sorted by name.
+	 */
+	public static List<File> collectInputs(final List<String> paths) {
+		List<File> inputs = new ArrayList<File>();
+		for (String path : paths) {
+			File file = new File(path);
+			if (file.isDirectory()) {
+				File[] files = file.listFiles(new FileFilter() {
+					@Override
+					public boolean accept(File f) {
+						return f.isFile() && f.getName().toLowerCase().endsWith(".xml");
+					}
+				});
+				if (files == null) {
+					System.err.println("Could not list " + file);
+					continue;
+				}
+				Arrays.sort(files);
+				inputs.addAll(Arrays.asList(files));
+			} else {
+				inputs.add(file);
+			}
+		}
+		return inputs;
+	}
+
+	public static void main(final String[] args) {
+		String projectName = DEFAULT_PROJECT_NAME;
+		double interval = DEFAULT_INTERVAL;
+		File destination = null;
+		int numWorkers = 1;
+		File mappingFile = null;
+		boolean compact = false;
+		boolean gzip = false;
+		boolean incremental = false;
+		boolean writeMetrics = false;
+		boolean writeCellTable = false;
+		boolean writePopulationStatistics = false;
+		boolean writeIndex = false;
+		int tracksPerShard = 0;
+		int framesPerShard = 0;
+		Set<Integer> trackIDs = null;
+		List<FeatureFilter> rootFilters = new ArrayList<FeatureFilter>();
+		int[] frameRange = null;
+		ContourFormat contours = ContourFormat.NONE;
+		double pixelSize = 1d;
+		long memoryBudget = 0;
+		List<String> paths = new ArrayList<String>();
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				String arg = args[i];
+				if (arg.equals("-d") || arg.equals("--destination")) {
+					destination = new File(value(args, ++i, arg));
+				} else if (arg.equals("-n") || arg.equals("--name")) {
+					projectName = value(args, ++i, arg);
+				} else if (arg.equals("-i") || arg.equals("--interval")) {
+					interval = Double.parseDouble(value(args, ++i, arg));
+				} else if (arg.equals("-w") || arg.equals("--workers")) {
+					numWorkers = Integer.parseInt(value(args, ++i, arg));
+				} else if (arg.equals("-f") || arg.equals("--features")) {
+					mappingFile = new File(value(args, ++i, arg));
+				} else if (arg.equals("-c") || arg.equals("--compact")) {
+					compact = true;
+				} else if (arg.equals("-z") || arg.equals("--gzip")) {
+					gzip = true;
+				} else if (arg.equals("-u") || arg.equals("--incremental")) {
+					incremental = true;
+				} else if (arg.equals("-m") || arg.equals("--metrics")) {
+					writeMetrics = true;
+				} else if (arg.equals("-b") || arg.equals("--cell-table")) {
+					writeCellTable = true;
+				} else if (arg.equals("-s") || arg.equals("--statistics")) {
+					writePopulationStatistics = true;
+				} else if (arg.equals("-x") || arg.equals("--index")) {
+					writeIndex = true;
+				} else if (arg.equals("-T") || arg.equals("--tracks-per-shard")) {
+					tracksPerShard = Integer.parseInt(value(args, ++i, arg));
+				} else if (arg.equals("-F") || arg.equals("--frames-per-shard")) {
+					framesPerShard = Integer.parseInt(value(args, ++i, arg));
+				} else if (arg.equals("-t") || arg.equals("--tracks")) {
+					trackIDs = ExportSettings.parseTrackIDs(value(args, ++i, arg));
+				} else if (arg.equals("-p") || arg.equals("--root-filter")) {
+					rootFilters.add(ExportSettings.parseFeatureFilter(value(args, ++i, arg)));
+				} else if (arg.equals("-r") || arg.equals("--frames")) {
+					frameRange = ExportSettings.parseFrameRange(value(args, ++i, arg));
+				} else if (arg.equals("-o") || arg.equals("--contours")) {
+					String format = value(args, ++i, arg);
+					if (format.equals("inline")) {
+						contours = ContourFormat.INLINE;
+					} else if (format.equals("file")) {
+						contours = ContourFormat.FILE;
+					} else {
+						throw new IllegalArgumentException("Unknown contour format " + format);
+					}
+				} else if (arg.equals("-P") || arg.equals("--pixel-size")) {
+					pixelSize = Double.parseDouble(value(args, ++i, arg));
+				} else if (arg.equals("-M") || arg.equals("--memory-budget")) {
+					memoryBudget = Long.parseLong(value(args, ++i, arg)) << 20;
+				} else if (arg.startsWith("-")) {
+					throw new IllegalArgumentException("Unknown option " + arg);
+				} else {
+					paths.add(arg);
+				}
+			}
+
+			if (destination == null) {
+				throw new IllegalArgumentException("No destination folder given");
+			}
+			if (paths.isEmpty()) {
+				throw new IllegalArgumentException("No TrackMate file given");
+			}
+			if (numWorkers < 1) {
+				throw new IllegalArgumentException("At least one worker is required");
+			}
+			if (tracksPerShard < 0 || framesPerShard < 0) {
+				throw new IllegalArgumentException("Negative number of tracks or frames per shard");
+			}
+			if (frameRange != null && (frameRange[0] < 0 || frameRange[1] < frameRange[0])) {
+				throw new IllegalArgumentException("Invalid frame range");
+			}
+			if (memoryBudget < 0) {
+				throw new IllegalArgumentException("Negative memory budget");
+			}
+			if (!(pixelSize > 0d)) {
+				throw new IllegalArgumentException("The pixel size must be positive");
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			usage();
+			System.exit(2);
+		}
+
+		FeatureMapping featureMapping = FeatureMapping.createDefault();
+		if (mappingFile != null) {
+			try {
+				featureMapping = FeatureMapping.read(mappingFile);
+			} catch (IOException e) {
+				System.err.println("Trouble reading feature mapping:\n" + e.getMessage());
+				System.exit(2);
+			}
+		}
+
+		// The images are not loaded, hence the number of frames is taken from the spots
+		ExportSettings.Builder builder = new ExportSettings.Builder()
+				.projectName(projectName)
+				.interval(interval)
+				.numThreads(Math.max(1, Runtime.getRuntime().availableProcessors() / numWorkers))
+				.featureMapping(featureMapping)
+				.format(new OutputFormat(compact, gzip))
+				.incremental(incremental)
+				.writeMetrics(writeMetrics)
+				.writeCellTable(writeCellTable)
+				.writePopulationStatistics(writePopulationStatistics)
+				.writeIndex(writeIndex)
+				.tracksPerShard(tracksPerShard)
+				.framesPerShard(framesPerShard)
+				.trackIDs(trackIDs)
+				.contours(contours)
+				.pixelSize(pixelSize)
+				.memoryBudget(memoryBudget);
+		for (FeatureFilter filter : rootFilters) {
+			builder.rootFilter(filter);
+		}
+		if (frameRange != null) {
+			builder.frameRange(frameRange[0], frameRange[1]);
+		}
+		ExportSettings settings = builder.build();
+
+		BatchExport batch = new BatchExport(settings, destination, numWorkers);
+		int failures = batch.export(collectInputs(paths));
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static String value(final String[] args, final int i, final String option) {
+		if (i >= args.length) {
+			throw new IllegalArgumentException("Missing value for " + option);
+		}
+		return args[i];
+	}
+
+	private static void usage() {
+		System.err.println("Usage: BatchExport [options] <file or folder>...");
+		System.err.println("  -d, --destination <folder>   Folder for the exported files (required)");
+		System.err.println("  -n, --name <name>            Project name (default: \"" + DEFAULT_PROJECT_NAME + "\")");
+		System.err.println("  -i, --interval <minutes>     Imaging interval (default: 8)");
+		System.err.println("  -w, --workers <count>        Number of concurrently exported files (default: 1)");
+		System.err.println("  -f, --features <file>        Feature mapping file (default: length, area, YFP, Crimson)");
+		System.err.println("  -c, --compact                Write XML without indentation");
+		System.err.println("  -z, --gzip                   Compress the exported files");
+		System.err.println("  -u, --incremental            Only marshal tracks that changed since the last export");
+		System.err.println("  -m, --metrics                Write timing and memory metrics as JSON next to the exported files");
+		System.err.println("  -b, --cell-table             Write the cells to a binary columnar file next to the exported files");
+		System.err.println("  -s, --statistics             Summarize the features of each frame's population in the metaXML");
+		System.err.println("  -x, --index                  Write the byte offsets of all frames and phylogenies to an index file");
+		System.err.println("  -T, --tracks-per-shard <n>   Split the phyloXML into files of n tracks (default: 0, a single file)");
+		System.err.println("  -F, --frames-per-shard <n>   Split the metaXML into files of n frames (default: 0, a single file)");
+		System.err.println("  -t, --tracks <ids>           Only export the tracks with these comma-separated IDs");
+		System.err.println("  -p, --root-filter <filter>   Only export tracks whose first spot passes the filter, e.g. QUALITY>30 (repeatable)");
+		System.err.println("  -r, --frames <first-last>    Only export the spots within this range of frames");
+		System.err.println("  -o, --contours <inline|file> Export the cell outlines as ImageJ ROIs to the metaXML or to a separate file");
+		System.err.println("  -P, --pixel-size <um>        Pixel size of the outlines (default: 1)");
+		System.err.println("  -M, --memory-budget <MB>     Spill metaXML frames beyond this memory to temporary files (default: 0, no limit)");
+	}
+
+}
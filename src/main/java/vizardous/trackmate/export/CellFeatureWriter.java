@@ -0,0 +1,295 @@
+package vizardous.trackmate.export;
+
+import java.io.IOException;
+import java.util.Map;
+
+import vizardous.trackmate.io.XmlWriter;
+
+/**
+ * A compiled {@link FeatureMapping}. All mappings are flattened into slots
+ * (one per scalar, two per fluorescence channel) so that the features of a
+ * spot are looked up in a single pass over fixed arrays.
+ * <p>
+ * Instances are immutable and can be shared between threads. The values that
+ * are looked up for a spot are kept in a scratch array that every thread
+ * obtains with {@link #newValues()}.
+ */
+public final class CellFeatureWriter {
+
+	private static final int SCALAR = 0;
+	private static final int MEAN = 1;
+	private static final int STDDEV = 2;
+
+	/** The kind of each slot */
+	private final int[] kinds;
+	/** The features of each slot in order of preference, {@code null} if missing */
+	private final String[][] keys;
+	/** Element name of scalars, channel name of means */
+	private final String[] names;
+	private final String[] units;
+	private final int[] precisions;
+
+	CellFeatureWriter(final FeatureMapping mapping) {
+		int size = mapping.getScalars().size() + 2 * mapping.getChannels().size();
+		kinds = new int[size];
+		keys = new String[size][];
+		names = new String[size];
+		units = new String[size];
+		precisions = new int[size];
+
+		// Scalars precede the <fluorescences>
+		int slot = 0;
+		for (FeatureMapping.Scalar scalar : mapping.getScalars()) {
+			kinds[slot] = SCALAR;
+			keys[slot] = scalar.featureKeys;
+			names[slot] = scalar.element;
+			units[slot] = scalar.unit;
+			precisions[slot] = scalar.precision;
+			slot++;
+		}
+
+		for (FeatureMapping.Channel channel : mapping.getChannels()) {
+			kinds[slot] = MEAN;
+			keys[slot] = channel.meanKeys;
+			names[slot] = channel.channel;
+			units[slot] = channel.unit;
+			precisions[slot] = channel.meanPrecision;
+			slot++;
+
+			kinds[slot] = STDDEV;
+			keys[slot] = channel.stdDevKey == null ? null : new String[] { channel.stdDevKey };
+			units[slot] = channel.unit;
+			precisions[slot] = channel.stdDevPrecision;
+			slot++;
+		}
+	}
+
+	/**
+	 * @return A scratch array for {@link #write(Map, Double[], XmlWriter)}.
+	 */
+	public Double[] newValues() {
+		return new Double[kinds.length];
+	}
+
+	/**
+	 * Writes the mapped features of a spot as children of the current
+	 * {@code <cell>} element.
+	 *
+	 * @param features
+	 *            The features of the spot
+	 * @param values
+	 *            Scratch array obtained from {@link #newValues()}
+	 * @param out
+	 *            The writer of the cell
+	 */
+	public void write(final Map<String, Double> features, final Double[] values, final XmlWriter out) throws IOException {
+		lookup(features, values);
+
+		boolean hasFluorescence = false;
+		for (int i = 0; i < kinds.length; i++) {
+			if (kinds[i] == MEAN && values[i] != null && values[i] > 0.0d) {
+				hasFluorescence = true;
+			}
+		}
+
+		for (int i = 0; i < kinds.length; i++) {
+			Double value = values[i];
+
+			if (kinds[i] == SCALAR) {
+				if (value != null && value > 0.0d) {
+					out.startElement(names[i]).attribute(UNIT_ATTR, units[i]);
+					out.text(value, precisions[i]).endElement();
+				}
+			} else if (kinds[i] == MEAN && hasFluorescence) {
+				// multiple <fluorescence ...>
+				if (i == 0 || kinds[i - 1] == SCALAR) {
+					out.startElement(FLUORESCENCES_KEY);
+				}
+
+				if (value != null && value > 0.0d) {
+					out.startElement(FLUOR_KEY).attribute(CHANNEL_ATTR, names[i]);
+
+					out.startElement(MEAN_KEY).attribute(UNIT_ATTR, units[i]);
+					out.text(value, precisions[i]).endElement();
+
+					// The standard deviation always follows its mean
+					Double stdDev = values[i + 1];
+					if (stdDev != null) {
+						out.startElement(STDDEV_KEY).attribute(UNIT_ATTR, units[i + 1]);
+						out.text(stdDev, precisions[i + 1]).endElement();
+					}
+
+					out.endElement();
+				}
+
+				if (i + 2 == kinds.length) {
+					out.endElement();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the summary of the mapped features of a population as children
+	 * of the current {@code <population>} element: the mean and standard
+	 * deviation of each scalar and of the mean of each fluorescence channel.
+	 * Slots without values are left out.
+	 *
+	 * @param counts
+	 *            The number of values of each slot
+	 * @param means
+	 *            The mean of each slot
+	 * @param stdDevs
+	 *            The standard deviation of each slot
+	 * @param offset
+	 *            The index of the first slot of the population in the arrays
+	 * @param out
+	 *            The writer of the population
+	 */
+	void writeSummary(final int[] counts, final double[] means, final double[] stdDevs, final int offset, final XmlWriter out) throws IOException {
+		boolean hasFluorescence = false;
+		for (int i = 0; i < kinds.length; i++) {
+			if (counts[offset + i] == 0) {
+				continue;
+			}
+
+			if (kinds[i] == SCALAR) {
+				out.startElement(names[i]);
+			} else if (kinds[i] == MEAN) {
+				if (!hasFluorescence) {
+					out.startElement(FLUORESCENCES_KEY);
+					hasFluorescence = true;
+				}
+				out.startElement(FLUOR_KEY).attribute(CHANNEL_ATTR, names[i]);
+			} else {
+				// The spread of the per-cell standard deviations is not summarized
+				continue;
+			}
+
+			out.startElement(MEAN_KEY).attribute(UNIT_ATTR, units[i]);
+			out.text(means[offset + i], precisions[i]).endElement();
+			out.startElement(STDDEV_KEY).attribute(UNIT_ATTR, units[i]);
+			out.text(stdDevs[offset + i], precisions[i]).endElement();
+			out.endElement();
+		}
+		if (hasFluorescence) {
+			out.endElement();
+		}
+	}
+
+	/**
+	 * Looks up the mapped features of a spot. After
+	 * {@link #write(Map, Double[], XmlWriter)}, the scratch array holds the
+	 * same values.
+	 *
+	 * @param features
+	 *            The features of the spot
+	 * @param values
+	 *            Scratch array obtained from {@link #newValues()}, receives
+	 *            the value of each slot or {@code null} if it is missing
+	 */
+	void lookup(final Map<String, Double> features, final Double[] values) {
+		for (int i = 0; i < kinds.length; i++) {
+			Double value = null;
+			String[] slotKeys = keys[i];
+			if (slotKeys != null) {
+				for (int k = 0; value == null && k < slotKeys.length; k++) {
+					value = features.get(slotKeys[k]);
+				}
+			}
+			values[i] = value;
+		}
+	}
+
+	/**
+	 * @return The number of slots, i.e. the length of the scratch arrays.
+	 */
+	int size() {
+		return kinds.length;
+	}
+
+	/**
+	 * @return The name of a slot in the {@link CellTable}: the element name
+	 *         of a scalar, {@code fluorescence.<channel>.mean} or
+	 *         {@code fluorescence.<channel>.stddev} of a channel.
+	 */
+	String getColumnName(final int slot) {
+		switch (kinds[slot]) {
+		case SCALAR:
+			return names[slot];
+		case MEAN:
+			return FLUOR_KEY + "." + names[slot] + "." + MEAN_KEY;
+		default:
+			return FLUOR_KEY + "." + names[slot - 1] + "." + STDDEV_KEY;
+		}
+	}
+
+	/**
+	 * @return The unit of a slot.
+	 */
+	String getUnit(final int slot) {
+		return units[slot];
+	}
+
+	/**
+	 * Adds the mapped features of a spot to a fingerprint, see
+	 * {@link FragmentCache}.
+	 *
+	 * @param features
+	 *            The features of the spot
+	 * @param hash
+	 *            The fingerprint so far
+	 * @return The updated fingerprint.
+	 */
+	long hash(final Map<String, Double> features, long hash) {
+		for (int i = 0; i < kinds.length; i++) {
+			Double value = null;
+			String[] slotKeys = keys[i];
+			if (slotKeys != null) {
+				for (int k = 0; value == null && k < slotKeys.length; k++) {
+					value = features.get(slotKeys[k]);
+				}
+			}
+
+			hash = FragmentCache.hash(hash, value == null ? 0L : 1L);
+			if (value != null) {
+				hash = FragmentCache.hash(hash, value.doubleValue());
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Adds the mapping itself to a fingerprint, so that a cache is
+	 * invalidated if the mapping changes.
+	 *
+	 * @param hash
+	 *            The fingerprint so far
+	 * @return The updated fingerprint.
+	 */
+	long hashMapping(long hash) {
+		for (int i = 0; i < kinds.length; i++) {
+			hash = FragmentCache.hash(hash, kinds[i]);
+			hash = FragmentCache.hash(hash, precisions[i]);
+			hash = FragmentCache.hash(hash, String.valueOf(names[i]) + '\0' + units[i]);
+			if (keys[i] != null) {
+				for (String key : keys[i]) {
+					hash = FragmentCache.hash(hash, key + '\0');
+				}
+			}
+			hash = FragmentCache.hash(hash, "\0\0");
+		}
+		return hash;
+	}
+
+	/*
+	 * XML KEYS
+	 */
+	private static final String FLUORESCENCES_KEY = "fluorescences";
+	private static final String FLUOR_KEY = "fluorescence";
+	private static final String UNIT_ATTR = "unit";
+	private static final String CHANNEL_ATTR = "channel";
+	private static final String MEAN_KEY = "mean";
+	private static final String STDDEV_KEY = "stddev";
+
+}
@@ -0,0 +1,261 @@
+package vizardous.trackmate.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary columnar sidecar of an export. It holds the cells of the metaXML
+ * as fixed-width arrays, one per column, so that analysis tools can map the
+ * file into memory and scan millions of cells without parsing XML.
+ * <p>
+ * Row {@code i} is the cell with ID {@code i}, i.e. the same cell as
+ * {@code <cell id="i">} in the metaXML and {@code <name>i</name>} in the
+ * phyloXML. The columns are:
+ *
+ * <pre>
+ * cell_id    int32    the ID of the cell, equal to the row
+ * frame      int32    the frame of the cell
+ * parent_id  int32    the ID of the mother cell, -1 for the first cell of a phylogeny
+ * x, y       float64  the position of the cell in um
+ * ...        float64  one column per mapped feature, see {@link FeatureMapping}:
+ *                     the element name of a scalar (e.g. length), or
+ *                     fluorescence.&lt;channel&gt;.mean and fluorescence.&lt;channel&gt;.stddev
+ * </pre>
+ *
+ * Missing values are NaN. All numbers are little-endian:
+ *
+ * <pre>
+ * header:  int magic ("JNGC"), int version, long rows, int columns, int reserved
+ * columns: columns * (int type, int reserved, long offset,
+ *                     int length, UTF-8 name, int length, UTF-8 unit)
+ * data:    one array of rows values per column, starting at its offset
+ * </pre>
+ *
+ * The type of a column is {@link #INT32} or {@link #FLOAT64}. Offsets are
+ * absolute and multiples of 8, hence every column can be viewed as a typed
+ * array of a mapped buffer.
+ * <p>
+ * Each track occupies a contiguous range of rows, which is written by a
+ * {@link Chunk} as soon as the track has been marshalled. Chunks of different
+ * tracks are written concurrently to disjoint positions of the file.
+ */
+final class CellTable {
+
+	static final int MAGIC = 0x43474E4A; // "JNGC" in little-endian order
+	static final int VERSION = 1;
+	/** Type of a column of 32 bit signed integers */
+	static final int INT32 = 1;
+	/** Type of a column of 64 bit IEEE 754 floating point numbers */
+	static final int FLOAT64 = 2;
+
+	private static final String EXTENSION = "_cells.bin";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Columns that precede the features */
+	private static final int FIXED_COLUMNS = 5;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int features;
+	private final long[] offsets;
+
+	/**
+	 * Derives the cell table from the phyloXML file.
+	 */
+	static File getCellTableFile(final File filePhylo) {
+		return new File(LineageExporter.getBasePath(filePhylo) + EXTENSION);
+	}
+
+	/**
+	 * Creates the table and writes its header. The rows are written by
+	 * {@link Chunk}s.
+	 *
+	 * @param tableFile
+	 *            The file of the table
+	 * @param rows
+	 *            The number of cells
+	 * @param featureWriter
+	 *            The mapped features, one column per slot
+	 */
+	CellTable(final File tableFile, final int rows, final CellFeatureWriter featureWriter) throws IOException {
+		this.features = featureWriter.size();
+
+		List<String> names = new ArrayList<String>();
+		List<String> units = new ArrayList<String>();
+		int[] types = new int[FIXED_COLUMNS + features];
+		addColumn(names, units, types, "cell_id", "", INT32);
+		addColumn(names, units, types, "frame", "", INT32);
+		addColumn(names, units, types, "parent_id", "", INT32);
+		addColumn(names, units, types, "x", "um", FLOAT64);
+		addColumn(names, units, types, "y", "um", FLOAT64);
+		for (int slot = 0; slot < features; slot++) {
+			addColumn(names, units, types, featureWriter.getColumnName(slot), featureWriter.getUnit(slot), FLOAT64);
+		}
+
+		int headerSize = 24;
+		for (int c = 0; c < types.length; c++) {
+			headerSize += 24 + names.get(c).getBytes(UTF8).length + units.get(c).getBytes(UTF8).length;
+		}
+
+		offsets = new long[types.length];
+		long offset = align(headerSize);
+		for (int c = 0; c < types.length; c++) {
+			offsets[c] = offset;
+			offset = align(offset + (long) rows * width(types[c]));
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putLong(rows).putInt(types.length).putInt(0);
+		for (int c = 0; c < types.length; c++) {
+			header.putInt(types[c]).putInt(0).putLong(offsets[c]);
+			putString(header, names.get(c));
+			putString(header, units.get(c));
+		}
+		header.flip();
+
+		file = new RandomAccessFile(tableFile, "rw");
+		channel = file.getChannel();
+		try {
+			file.setLength(offset);
+			write(header, 0);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	private void addColumn(final List<String> names, final List<String> units, final int[] types, final String name, final String unit, final int type) {
+		types[names.size()] = type;
+		names.add(name);
+		units.add(unit == null ? "" : unit);
+	}
+
+	private static void putString(final ByteBuffer buffer, final String value) {
+		byte[] bytes = value.getBytes(UTF8);
+		buffer.putInt(bytes.length).put(bytes);
+	}
+
+	private static int width(final int type) {
+		return type == INT32 ? 4 : 8;
+	}
+
+	private static long align(final long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	/**
+	 * Writes a buffer completely at the provided position. Safe for
+	 * concurrent use with disjoint positions.
+	 */
+	private void write(final ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * Closes the table. All chunks must have been written.
+	 */
+	void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * The rows of a single track. The values are collected while the track
+	 * is traversed and written column by column.
+	 */
+	final class Chunk {
+		private final int firstRow;
+		private final int[] frames;
+		private final int[] parents;
+		private final double[] x;
+		private final double[] y;
+		private final double[][] values;
+
+		/**
+		 * @param firstRow
+		 *            The ID of the first cell of the track
+		 * @param rowCount
+		 *            The number of cells of the track
+		 */
+		Chunk(final int firstRow, final int rowCount) {
+			this.firstRow = firstRow;
+			frames = new int[rowCount];
+			parents = new int[rowCount];
+			x = new double[rowCount];
+			y = new double[rowCount];
+			values = new double[features][rowCount];
+		}
+
+		/**
+		 * Sets the values of a cell.
+		 *
+		 * @param cellID
+		 *            The ID of the cell
+		 * @param frame
+		 *            The frame of the cell
+		 * @param parentID
+		 *            The ID of the mother cell, -1 for none
+		 * @param centerX
+		 *            The X position, {@code null} if missing
+		 * @param centerY
+		 *            The Y position, {@code null} if missing
+		 * @param featureValues
+		 *            The mapped features as looked up by
+		 *            {@link CellFeatureWriter#lookup(java.util.Map, Double[])}
+		 */
+		void set(final int cellID, final int frame, final int parentID, final Double centerX, final Double centerY, final Double[] featureValues) {
+			int row = cellID - firstRow;
+			frames[row] = frame;
+			parents[row] = parentID;
+			x[row] = valueOf(centerX);
+			y[row] = valueOf(centerY);
+			for (int f = 0; f < features; f++) {
+				values[f][row] = valueOf(featureValues[f]);
+			}
+		}
+
+		private double valueOf(final Double value) {
+			return value == null ? Double.NaN : value.doubleValue();
+		}
+
+		/**
+		 * Writes the rows to their positions in the table.
+		 */
+		void write() throws IOException {
+			int rowCount = frames.length;
+			ByteBuffer buffer = ByteBuffer.allocate(rowCount * 8).order(ByteOrder.LITTLE_ENDIAN);
+
+			for (int row = 0; row < rowCount; row++) {
+				buffer.putInt(firstRow + row);
+			}
+			writeColumn(buffer, 0, 4);
+			buffer.asIntBuffer().put(frames);
+			writeColumn(buffer, 1, 4);
+			buffer.asIntBuffer().put(parents);
+			writeColumn(buffer, 2, 4);
+			buffer.asDoubleBuffer().put(x);
+			writeColumn(buffer, 3, 8);
+			buffer.asDoubleBuffer().put(y);
+			writeColumn(buffer, 4, 8);
+			for (int f = 0; f < features; f++) {
+				buffer.asDoubleBuffer().put(values[f]);
+				writeColumn(buffer, FIXED_COLUMNS + f, 8);
+			}
+		}
+
+		private void writeColumn(final ByteBuffer buffer, final int column, final int width) throws IOException {
+			buffer.position(0).limit(frames.length * width);
+			CellTable.this.write(buffer, offsets[column] + (long) firstRow * width);
+			buffer.clear();
+		}
+	}
+
+}
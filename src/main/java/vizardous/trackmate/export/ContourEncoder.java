@@ -0,0 +1,138 @@
+package vizardous.trackmate.export;
+
+import ij.gui.OvalRoi;
+import ij.gui.Roi;
+import ij.io.RoiEncoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Encodes the outlines of cells as ImageJ ROIs, i.e. in the format of
+ * {@code .roi} files, so that they can be decoded with {@code RoiDecoder}.
+ * <p>
+ * TrackMate spots are circles, hence the outline of a cell is an
+ * {@link OvalRoi} of the spot's {@link Spot#RADIUS} around its position. The
+ * ROI is given in pixel coordinates and its position is the 1-based frame of
+ * the cell. Spots without a position or radius have no outline.
+ * <p>
+ * All ROIs of an encoder are written to a single buffer that is reused for
+ * all cells, as is the buffer of their Base64 encoding. An encoder must not
+ * be shared between threads.
+ */
+final class ContourEncoder {
+
+	private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	private final double pixelSize;
+	private final RoiBuffer buffer = new RoiBuffer();
+	private final RoiEncoder encoder = new RoiEncoder(buffer);
+	private final StringBuilder base64 = new StringBuilder(512);
+
+	/**
+	 * @param pixelSize
+	 *            The size of a pixel in the units of the spot positions
+	 */
+	ContourEncoder(final double pixelSize) {
+		this.pixelSize = pixelSize;
+	}
+
+	/**
+	 * Appends the outline of a Spot to the buffer.
+	 *
+	 * @return Whether the Spot has an outline.
+	 */
+	boolean encode(final Spot spot) throws IOException {
+		Map<String, Double> features = spot.getFeatures();
+		Double x = features.get(Spot.POSITION_X);
+		Double y = features.get(Spot.POSITION_Y);
+		Double radius = features.get(Spot.RADIUS);
+		if (x == null || y == null || radius == null || !(radius > 0d)) {
+			return false;
+		}
+
+		double r = radius / pixelSize;
+		int left = (int) Math.round(x / pixelSize - r);
+		int top = (int) Math.round(y / pixelSize - r);
+		int diameter = Math.max(1, (int) Math.round(2d * r));
+		Roi roi = new OvalRoi(left, top, diameter, diameter);
+		roi.setPosition(spot.getFeature(Spot.FRAME).intValue() + 1);
+		encoder.write(roi);
+		return true;
+	}
+
+	/**
+	 * Encodes the outline of a single Spot as Base64. The buffer is cleared
+	 * before.
+	 *
+	 * @return The encoded outline, valid until the next outline is encoded,
+	 *         {@code null} if the Spot has none.
+	 */
+	CharSequence encodeBase64(final Spot spot) throws IOException {
+		buffer.reset();
+		if (!encode(spot)) {
+			return null;
+		}
+		base64.setLength(0);
+		appendBase64(buffer.bytes(), buffer.size(), base64);
+		return base64;
+	}
+
+	/**
+	 * Appends bytes in Base64 with padding and without line breaks, like
+	 * {@code Base64.encodeBase64String} of commons-codec.
+	 */
+	static void appendBase64(final byte[] bytes, final int length, final StringBuilder out) {
+		int i = 0;
+		for (; i + 2 < length; i += 3) {
+			int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+			out.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f])
+					.append(BASE64[(bits >>> 6) & 0x3f]).append(BASE64[bits & 0x3f]);
+		}
+		int rest = length - i;
+		if (rest > 0) {
+			int bits = (bytes[i] & 0xff) << 16 | (rest == 2 ? (bytes[i + 1] & 0xff) << 8 : 0);
+			out.append(BASE64[bits >>> 18]).append(BASE64[(bits >>> 12) & 0x3f]);
+			out.append(rest == 2 ? BASE64[(bits >>> 6) & 0x3f] : '=').append('=');
+		}
+	}
+
+	/**
+	 * @return The number of bytes in the buffer.
+	 */
+	int size() {
+		return buffer.size();
+	}
+
+	/**
+	 * @return The buffer, valid up to {@link #size()} until the next ROI is
+	 *         encoded.
+	 */
+	byte[] bytes() {
+		return buffer.bytes();
+	}
+
+	/**
+	 * Clears the buffer, its capacity is kept.
+	 */
+	void reset() {
+		buffer.reset();
+	}
+
+	/**
+	 * A byte array stream whose array can be read without copying it.
+	 */
+	private static final class RoiBuffer extends ByteArrayOutputStream {
+		RoiBuffer() {
+			super(256);
+		}
+
+		byte[] bytes() {
+			return buf;
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package vizardous.trackmate.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary sidecar of an export with the outlines of the cells as ImageJ ROIs,
+ * see {@link ContourEncoder}. The ROI of the cell with ID {@code i} is found
+ * through the index without parsing any other record:
+ *
+ * <pre>
+ * header:  int magic ("JNGR"), int version, long cells
+ * index:   (cells + 1) * long offset
+ * records: the ROI of cell i spans the bytes offset[i] to offset[i + 1] - 1
+ * </pre>
+ *
+ * Offsets are absolute. A cell without an outline has an empty record. The
+ * header and the index are little-endian like the {@link CellTable}, the
+ * records are ImageJ {@code .roi} files, which are big-endian.
+ * <p>
+ * The records are appended in track order by {@link #append}, i.e. on the
+ * thread that merges the tracks.
+ */
+final class ContourFile {
+
+	static final int MAGIC = 0x52474E4A; // "JNGR" in little-endian order
+	static final int VERSION = 1;
+
+	private static final String EXTENSION = "_contours.bin";
+	private static final int HEADER_SIZE = 16;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int cells;
+	/** The position of the next record */
+	private long position;
+
+	/**
+	 * Derives the contour file from the phyloXML file.
+	 */
+	static File getContourFile(final File filePhylo) {
+		return new File(LineageExporter.getBasePath(filePhylo) + EXTENSION);
+	}
+
+	/**
+	 * Creates the file and writes its header.
+	 *
+	 * @param contourFile
+	 *            The file of the outlines
+	 * @param cells
+	 *            The number of cells
+	 */
+	ContourFile(final File contourFile, final int cells) throws IOException {
+		this.cells = cells;
+		this.position = HEADER_SIZE + 8L * (cells + 1);
+
+		file = new RandomAccessFile(contourFile, "rw");
+		channel = file.getChannel();
+		try {
+			file.setLength(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putLong(cells);
+			header.flip();
+			write(header, 0);
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends the outlines of a track.
+	 *
+	 * @param firstID
+	 *            The ID of the first cell of the track
+	 * @param offsets
+	 *            The start of the record of each cell in {@code bytes},
+	 *            followed by the end of the last record
+	 * @param bytes
+	 *            The records of the track
+	 */
+	void append(final int firstID, final int[] offsets, final byte[] bytes) throws IOException {
+		int count = offsets.length - 1;
+		ByteBuffer index = ByteBuffer.allocate(8 * count).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i = 0; i < count; i++) {
+			index.putLong(position + offsets[i]);
+		}
+		index.flip();
+		write(index, HEADER_SIZE + 8L * firstID);
+
+		write(ByteBuffer.wrap(bytes, 0, offsets[count]), position);
+		position += offsets[count];
+	}
+
+	/**
+	 * Writes the end of the last record and closes the file. All tracks
+	 * must have been appended.
+	 */
+	void close() throws IOException {
+		try {
+			ByteBuffer end = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			end.putLong(position);
+			end.flip();
+			write(end, HEADER_SIZE + 8L * cells);
+		} finally {
+			file.close();
+		}
+	}
+
+	private void write(final ByteBuffer buffer, long at) throws IOException {
+		while (buffer.hasRemaining()) {
+			at += channel.write(buffer, at);
+		}
+	}
+
+}
@@ -0,0 +1,24 @@
+package vizardous.trackmate.export;
+
+/**
+ * How the outlines of the cells are exported, see {@link ContourEncoder}.
+ */
+public enum ContourFormat {
+
+	/** Outlines are not exported */
+	NONE,
+
+	/**
+	 * Each {@code <cell>} of the metaXML gets a {@code <contour>} element with
+	 * the Base64 encoded ImageJ ROI of its outline.
+	 */
+	INLINE,
+
+	/**
+	 * The ImageJ ROIs are written to a binary file next to the phyloXML that
+	 * is indexed by cell ID, see {@link ContourFile}. The metaXML is not
+	 * changed, hence this is the choice for large exports.
+	 */
+	FILE
+
+}
@@ -0,0 +1,266 @@
+package vizardous.trackmate.export;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import vizardous.trackmate.io.CountingWriter;
+import vizardous.trackmate.io.OutputFormat;
+
+/**
+ * Binary sidecar of an export with the byte range of every {@code <frame>}
+ * of the metaXML and every {@code <phylogeny>} of the phyloXML, so that a
+ * reader can seek or map straight to a frame or a track instead of parsing
+ * the documents from the start:
+ *
+ * <pre>
+ * header:      int magic ("JNGX"), int version, int documents, int frames, int phylogenies, int reserved
+ * frames:      frames * (int frame, int document, long offset, long length), ordered by frame
+ * phylogenies: phylogenies * (int trackID, int document, long offset, long length), ordered by track ID
+ * documents:   documents * (long size, long crc32, int type, int length, UTF-8 file name)
+ * </pre>
+ *
+ * An entry spans the element from its {@code '<'} to the end of its end tag.
+ * A track that is cut by a range of frames may have several phylogenies,
+ * which keep the order of the phyloXML. Documents are referred to by their
+ * position in the document table: the phyloXML documents, then the metaXML
+ * documents, each in shard order. The type of a document is
+ * {@link #PHYLOXML} or {@link #METAXML}, its name is relative to the folder of
+ * the index.
+ * <p>
+ * The size and the CRC-32 of each document are those of the file as written.
+ * A reader detects a stale index, e.g. of a document that has been exported
+ * again without the index, by comparing them with the files. All numbers are
+ * little-endian like the {@link CellTable}. The header and the entries have a
+ * fixed size of 24 bytes, hence the entries can be viewed as arrays of a
+ * mapped buffer.
+ * <p>
+ * Offsets are only meaningful for uncompressed documents, hence no index is
+ * written for gzip compressed exports.
+ */
+final class ExportIndex {
+
+	static final int MAGIC = 0x58474E4A; // "JNGX" in little-endian order
+	static final int VERSION = 1;
+	/** Type of a phyloXML document */
+	static final int PHYLOXML = 0;
+	/** Type of a metaXML document */
+	static final int METAXML = 1;
+
+	private static final String EXTENSION = "_index.bin";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int HEADER_SIZE = 24;
+	private static final int ENTRY_SIZE = 24;
+
+	private final List<Document> documents = new ArrayList<Document>();
+
+	/**
+	 * Derives the index file from the phyloXML file.
+	 */
+	static File getIndexFile(final File filePhylo) {
+		return new File(LineageExporter.getBasePath(filePhylo) + EXTENSION);
+	}
+
+	/**
+	 * Adds a document to the index. Documents can be added and written
+	 * concurrently.
+	 *
+	 * @param type
+	 *            {@link #PHYLOXML} or {@link #METAXML}
+	 * @param shard
+	 *            The index of the shard
+	 * @param target
+	 *            The final location of the document
+	 * @return The document, whose elements are recorded while it is written.
+	 */
+	synchronized Document addDocument(final int type, final int shard, final File target) {
+		Document document = new Document(type, shard, target);
+		documents.add(document);
+		return document;
+	}
+
+	/**
+	 * Writes the index. All documents must have been closed.
+	 *
+	 * @param file
+	 *            The destination of the index
+	 */
+	synchronized void write(final File file) throws IOException {
+		List<Document> sorted = new ArrayList<Document>(documents);
+		Collections.sort(sorted, new Comparator<Document>() {
+			@Override
+			public int compare(Document a, Document b) {
+				int cmp = compareInts(a.type, b.type);
+				return cmp != 0 ? cmp : compareInts(a.shard, b.shard);
+			}
+		});
+
+		int frames = 0;
+		int phylogenies = 0;
+		for (Document document : sorted) {
+			if (document.type == METAXML) {
+				frames += document.entries;
+			} else {
+				phylogenies += document.entries;
+			}
+		}
+
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).putInt(VERSION).putInt(sorted.size()).putInt(frames).putInt(phylogenies).putInt(0);
+			out.write(header.array());
+
+			writeEntries(out, sorted, METAXML, frames);
+			writeEntries(out, sorted, PHYLOXML, phylogenies);
+
+			for (Document document : sorted) {
+				if (document.size < 0) {
+					throw new IllegalStateException("Document " + document.name + " has not been closed");
+				}
+				byte[] name = document.name.getBytes(UTF8);
+				ByteBuffer record = ByteBuffer.allocate(24 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+				record.putLong(document.size).putLong(document.crc).putInt(document.type).putInt(name.length).put(name);
+				out.write(record.array());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the entries of all documents of a type, ordered by their key.
+	 * Entries with the same key keep the order of the documents.
+	 */
+	private static void writeEntries(final OutputStream out, final List<Document> documents, final int type, final int count) throws IOException {
+		// The key in the upper, the position in the lower half for a stable order
+		long[] order = new long[count];
+		int[] documentOf = new int[count];
+		int[] entryOf = new int[count];
+		int position = 0;
+		for (int d = 0; d < documents.size(); d++) {
+			Document document = documents.get(d);
+			if (document.type != type) {
+				continue;
+			}
+			for (int e = 0; e < document.entries; e++) {
+				order[position] = ((long) document.keys[e] << 32) | position;
+				documentOf[position] = d;
+				entryOf[position] = e;
+				position++;
+			}
+		}
+		Arrays.sort(order);
+
+		ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE * Math.min(count, 4096)).order(ByteOrder.LITTLE_ENDIAN);
+		for (long sorted : order) {
+			int p = (int) sorted;
+			Document document = documents.get(documentOf[p]);
+			int e = entryOf[p];
+			buffer.putInt(document.keys[e]).putInt(documentOf[p]).putLong(document.offsets[e]).putLong(document.lengths[e]);
+			if (!buffer.hasRemaining()) {
+				out.write(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+		}
+		out.write(buffer.array(), 0, buffer.position());
+	}
+
+	private static int compareInts(final int a, final int b) {
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	/**
+	 * A document of the export and the byte ranges of its elements. A
+	 * document is written by a single thread.
+	 */
+	static final class Document {
+		final int type;
+		final int shard;
+		final String name;
+
+		private CountingWriter counter;
+		private final CRC32 checksum = new CRC32();
+
+		private int entries = 0;
+		private int[] keys = new int[64];
+		private long[] offsets = new long[64];
+		private long[] lengths = new long[64];
+
+		private long size = -1;
+		private long crc;
+
+		Document(final int type, final int shard, final File target) {
+			this.type = type;
+			this.shard = shard;
+			this.name = target.getName();
+		}
+
+		/**
+		 * Opens the writer of the document, which counts the bytes and
+		 * computes the checksum.
+		 *
+		 * @param format
+		 *            The format of the export
+		 * @param file
+		 *            The file that is written
+		 */
+		Writer open(final OutputFormat format, final File file) throws IOException {
+			counter = new CountingWriter(format.openWriter(file, checksum));
+			return counter;
+		}
+
+		/**
+		 * Marks the start of an element, which is the next element that is
+		 * written.
+		 */
+		void startElement() {
+			counter.markElement();
+		}
+
+		/**
+		 * Records the element that has been written since
+		 * {@link #startElement()}.
+		 *
+		 * @param key
+		 *            The frame or the track ID of the element
+		 */
+		void endElement(final int key) {
+			if (entries == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * entries);
+				offsets = Arrays.copyOf(offsets, 2 * entries);
+				lengths = Arrays.copyOf(lengths, 2 * entries);
+			}
+			long offset = counter.getElementOffset();
+			keys[entries] = key;
+			offsets[entries] = offset;
+			lengths[entries] = counter.getByteCount() - offset;
+			entries++;
+		}
+
+		/**
+		 * Records the size and the checksum of the document. The writer must
+		 * have been closed.
+		 *
+		 * @param size
+		 *            The size of the written file
+		 */
+		void close(final long size) {
+			this.size = size;
+			this.crc = checksum.getValue();
+		}
+	}
+
+}
@@ -0,0 +1,251 @@
+package vizardous.trackmate.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import fiji.plugin.trackmate.Logger;
+import vizardous.trackmate.io.FixedPointFormat;
+
+/**
+ * Collects the duration of the phases of an export, the number of exported
+ * tracks, spots and frames and the peak heap usage. Each phase is reported
+ * to the {@link Logger} as soon as it ends, and a summary can be written as
+ * JSON.
+ * <p>
+ * The heap usage is sampled at the end of each phase and whenever the
+ * progress is reported, hence the peak is a lower bound.
+ */
+final class ExportMetrics {
+
+	/** Minimum time between two progress messages in the log */
+	private static final long LOG_INTERVAL = 10000000000L; // 10 s
+	/** Minimum time between two heap samples */
+	private static final long SAMPLE_INTERVAL = 100000000L; // 100 ms
+
+	private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+	private final Logger logger;
+	private final long start = System.nanoTime();
+	private final List<Phase> phases = new ArrayList<Phase>();
+
+	int tracks = 0;
+	/** The phylogenies of the tracks, more than tracks if a range of frames cuts them */
+	int phylogenies = 0;
+	int spots = 0;
+	int frames = 0;
+
+	private volatile long peakHeap = 0;
+	private long lastSample = 0;
+	private long lastLog = start;
+
+	ExportMetrics(final Logger logger) {
+		this.logger = logger;
+		sampleHeap();
+	}
+
+	/**
+	 * Starts a phase that lasts until {@link Phase#end(long)}.
+	 *
+	 * @param name
+	 *            The name of the phase
+	 * @param unit
+	 *            The unit of the items that are processed in the phase
+	 */
+	synchronized Phase begin(final String name, final String unit) {
+		Phase phase = new Phase(name, unit);
+		phases.add(phase);
+		logger.setStatus(name);
+		phase.resume();
+		return phase;
+	}
+
+	/**
+	 * Reports the progress of the marshalling. A message is logged at most
+	 * every {@link #LOG_INTERVAL}, so that a stuck export can be told apart
+	 * from a slow one.
+	 *
+	 * @param phase
+	 *            The running phase
+	 * @param done
+	 *            The number of processed phylogenies
+	 * @param doneSpots
+	 *            The number of processed spots
+	 */
+	void progress(final Phase phase, final int done, final int doneSpots) {
+		logger.setProgress(phylogenies == 0 ? 1d : (double) done / phylogenies);
+
+		long now = System.nanoTime();
+		if (now - lastSample >= SAMPLE_INTERVAL) {
+			sampleHeap();
+			lastSample = now;
+		}
+		if (now - lastLog >= LOG_INTERVAL) {
+			double seconds = (now - phase.startTime) / 1e9;
+			logger.log("    " + done + "/" + phylogenies + " phylogenies, " + rate(doneSpots, seconds) + " spots/s, "
+					+ megabytes(peakHeap) + " MB peak heap.\n");
+			lastLog = now;
+		}
+	}
+
+	/**
+	 * Samples the used heap.
+	 */
+	void sampleHeap() {
+		long used = MEMORY.getHeapMemoryUsage().getUsed();
+		if (used > peakHeap) {
+			peakHeap = used;
+		}
+	}
+
+	/**
+	 * Logs the summary of the export.
+	 */
+	void logSummary() {
+		sampleHeap();
+		double seconds = elapsedSeconds();
+		logger.log("  Exported " + tracks + " tracks" + (phylogenies != tracks ? " in " + phylogenies + " phylogenies" : "") + " with " + spots + " spots in " + frames + " frames in "
+				+ format(seconds, 1) + " s (" + rate(spots, seconds) + " spots/s), "
+				+ megabytes(peakHeap) + " MB peak heap.\n");
+		logger.setProgress(1d);
+		logger.setStatus("");
+	}
+
+	/**
+	 * Derives the metrics file from the phyloXML file.
+	 */
+	static File getMetricsFile(final File filePhylo) {
+		return new File(LineageExporter.getBasePath(filePhylo) + "_metrics.json");
+	}
+
+	/**
+	 * Writes the metrics as JSON.
+	 *
+	 * @param file
+	 *            The metrics file
+	 * @param filePhylo
+	 *            The exported phyloXML
+	 */
+	synchronized void writeJson(final File file, final File filePhylo) throws IOException {
+		double seconds = elapsedSeconds();
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		json.append("  \"file\": ").append(quote(filePhylo.getAbsolutePath())).append(",\n");
+		json.append("  \"tracks\": ").append(tracks).append(",\n");
+		json.append("  \"phylogenies\": ").append(phylogenies).append(",\n");
+		json.append("  \"spots\": ").append(spots).append(",\n");
+		json.append("  \"frames\": ").append(frames).append(",\n");
+		json.append("  \"seconds\": ").append(format(seconds, 3)).append(",\n");
+		json.append("  \"spotsPerSecond\": ").append(rate(spots, seconds)).append(",\n");
+		json.append("  \"peakHeapBytes\": ").append(peakHeap).append(",\n");
+		json.append("  \"phases\": [");
+		for (int i = 0; i < phases.size(); i++) {
+			Phase phase = phases.get(i);
+			json.append(i == 0 ? "\n" : ",\n");
+			json.append("    { \"name\": ").append(quote(phase.name));
+			json.append(", \"seconds\": ").append(format(phase.elapsed / 1e9, 3));
+			json.append(", \"count\": ").append(phase.count);
+			json.append(", \"unit\": ").append(quote(phase.unit)).append(" }");
+		}
+		json.append("\n  ]\n}\n");
+
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write(json.toString());
+		} finally {
+			out.close();
+		}
+	}
+
+	private double elapsedSeconds() {
+		return (System.nanoTime() - start) / 1e9;
+	}
+
+	private static String rate(final long count, final double seconds) {
+		return seconds > 0d ? format(count / seconds, 0) : "0";
+	}
+
+	private static long megabytes(final long bytes) {
+		return bytes >> 20;
+	}
+
+	private static String format(final double value, final int precision) {
+		StringBuilder out = new StringBuilder();
+		try {
+			FixedPointFormat.append(out, value, precision);
+		} catch (IOException e) {
+			// StringBuilder does not throw
+		}
+		return out.toString();
+	}
+
+	private static String quote(final String value) {
+		StringBuilder out = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.append('\\').append(c);
+			} else if (c < 0x20) {
+				out.append(String.format("\\u%04x", (int) c));
+			} else {
+				out.append(c);
+			}
+		}
+		return out.append('"').toString();
+	}
+
+	/**
+	 * A phase of the export. Phases that are interleaved with other work are
+	 * measured piecewise with {@link #resume()} and {@link #pause()}.
+	 */
+	final class Phase {
+		final String name;
+		final String unit;
+		final long startTime = System.nanoTime();
+		private long resumed;
+		private boolean running = false;
+		private long elapsed = 0;
+		private long count = 0;
+
+		private Phase(final String name, final String unit) {
+			this.name = name;
+			this.unit = unit;
+		}
+
+		void resume() {
+			resumed = System.nanoTime();
+			running = true;
+		}
+
+		void pause() {
+			if (running) {
+				elapsed += System.nanoTime() - resumed;
+				running = false;
+			}
+		}
+
+		/**
+		 * Ends the phase and logs its duration. A running phase is paused
+		 * first.
+		 *
+		 * @param processed
+		 *            The number of processed items
+		 */
+		void end(final long processed) {
+			pause();
+			count = processed;
+			sampleHeap();
+
+			double seconds = elapsed / 1e9;
+			logger.log("  " + name + ": " + processed + " " + unit + " in " + format(seconds, 2) + " s ("
+					+ rate(processed, seconds) + " " + unit + "/s).\n");
+		}
+	}
+
+}
@@ -0,0 +1,1811 @@
+package vizardous.trackmate.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+import fiji.plugin.trackmate.features.FeatureFilter;
+import vizardous.trackmate.io.OutputFormat;
+import vizardous.trackmate.io.PendingFile;
+import vizardous.trackmate.io.XmlWriter;
+
+/**
+ * A single export of a TrackMate {@link Model} by a {@link LineageExporter}.
+ * A run holds all state of the export, i.e. the assigned IDs, the serialized
+ * frames and the open files, and is discarded afterwards. Hence, exports
+ * never share state, even if they run concurrently.
+ * <p>
+ * An export is canceled by interrupting the exporting thread. It stops at the
+ * next check of the traversal and write loops and throws an
+ * {@link InterruptedIOException}; the temporary files are removed and
+ * previously exported files are left untouched.
+ * <p>
+ * All files are written to temporary files, which are moved to their targets
+ * once all of them have been written. The phyloXML is moved last, hence a
+ * reader that finds a new phyloXML also finds the metaXML and the sidecars of
+ * the same export.
+ */
+final class ExportRun {
+	
+	private final Logger logger;
+	private final String projectName;
+	private final double interval;
+	private final int numThreads;
+	private final CellFeatureWriter featureWriter;
+	private final OutputFormat format;
+	private final boolean incremental;
+	private final boolean writeMetrics;
+	private final boolean writeCellTable;
+	private final boolean writePopulationStatistics;
+	private final boolean writeIndex;
+	private final int tracksPerShard;
+	private final int framesPerShard;
+	private final boolean sharded;
+	private final Set<Integer> selectedTracks;
+	private final List<FeatureFilter> rootFilters;
+	private final int firstFrame;
+	private final int lastFrame;
+	private final boolean frameRangeLimited;
+	private final ContourFormat contours;
+	private final double pixelSize;
+	private final long memoryBudget;
+	
+	private int nframes;
+	private FragmentCache cache;
+	private FragmentCache.Writer cacheWriter;
+	private int reusedTracks = 0;
+	private ExportMetrics metrics;
+	private ShardManifest manifest;
+	private File cellTableFile;
+	private CellTable cellTable;
+	private File contourFileTemp;
+	private ContourFile contourFile;
+	private int mergedTracks = 0;
+	private int mergedSpots = 0;
+	private int counter = 0;
+	private FrameBuckets framesMap = new FrameBuckets();
+	private FrameSpool spool;
+	private ExportIndex exportIndex;
+	/** The encoder of the outlines of each worker thread */
+	private final ThreadLocal<ContourEncoder> contourEncoders = new ThreadLocal<ContourEncoder>() {
+		@Override
+		protected ContourEncoder initialValue() {
+			return new ContourEncoder(pixelSize);
+		}
+	};
+	/** The tracks that may have changed since the cache was written, {@code null} for all */
+	private Set<Integer> changedTracks;
+	
+	private int populationCounter = 0;
+	private PopulationStatistics population;
+	
+	/*
+	 * CONSTRUCTOR
+	 */
+	/**
+	 * @param settings
+	 *            The settings of the export
+	 * @param logger
+	 *            The logger that reports the progress of the export
+	 */
+	ExportRun(final ExportSettings settings, final Logger logger) {
+		this.projectName = settings.getProjectName();
+		this.interval = settings.getInterval();
+		this.nframes = settings.getNFrames();
+		this.numThreads = settings.getNumThreads();
+		this.featureWriter = settings.getFeatureWriter();
+		this.format = settings.getFormat();
+		this.incremental = settings.isIncremental();
+		this.writeMetrics = settings.isWriteMetrics();
+		this.writeCellTable = settings.isWriteCellTable();
+		this.writePopulationStatistics = settings.isWritePopulationStatistics();
+		this.writeIndex = settings.isWriteIndex();
+		this.tracksPerShard = settings.getTracksPerShard();
+		this.framesPerShard = settings.getFramesPerShard();
+		this.sharded = settings.isSharded();
+		this.selectedTracks = settings.getTrackIDs();
+		this.rootFilters = settings.getRootFilters();
+		this.firstFrame = settings.getFirstFrame();
+		this.lastFrame = settings.getLastFrame();
+		this.frameRangeLimited = settings.isFrameRangeLimited();
+		this.contours = settings.getContours();
+		this.pixelSize = settings.getPixelSize();
+		this.memoryBudget = settings.getMemoryBudget();
+		this.logger = logger;
+	}
+	
+	/**
+	 * Exports the visible tracks of the provided {@link Model}. The metaXML is
+	 * written next to the phyloXML, see {@link LineageExporter#getMetaFile(File)}. If the
+	 * export is sharded, the documents are named after the phyloXML and listed
+	 * in a manifest, see {@link ShardManifest}.
+	 * <p>
+	 * The phyloXML is written by a {@link PhyloWriter} on its own thread while
+	 * the tracks are traversed, the metaXML is written afterwards. All files
+	 * are written to temporary files that only replace the targets if all of
+	 * them have been written successfully. Otherwise, the errors of both
+	 * writers are reported together.
+	 * 
+	 * @param model
+	 *            The TrackMate {@link Model} that will be exported
+	 * @param filePhylo
+	 *            The destination of the phyloXML
+	 */
+	void export(final Model model, final File filePhylo) throws IOException {
+		export(ModelView.of(model), filePhylo, null);
+	}
+	
+	/**
+	 * Exports the visible tracks of the provided view of a {@link Model} like
+	 * {@link #export(Model, File)}. If the export is incremental, the cached
+	 * tracks that are not listed as changed are reused without computing
+	 * their fingerprint.
+	 * 
+	 * @param model
+	 *            The view of the TrackMate {@link Model} that will be
+	 *            exported
+	 * @param filePhylo
+	 *            The destination of the phyloXML
+	 * @param changedTracks
+	 *            The IDs of the tracks that may have changed since the
+	 *            previous export to the same file, {@code null} if any track
+	 *            may have changed
+	 */
+	void export(final ModelView model, final File filePhylo, final Set<Integer> changedTracks) throws IOException {
+		this.changedTracks = changedTracks;
+		File fileCache = FragmentCache.getCacheFile(filePhylo);
+		
+		logger.log("  Preparing XML data.\n");
+		prepare(model);
+		manifest = new ShardManifest();
+		
+		// Shards are added by the writers
+		List<PendingFile> pendingFiles = Collections.synchronizedList(new ArrayList<PendingFile>());
+		boolean success = false;
+		ExecutorService writerExecutor = Executors.newSingleThreadExecutor();
+		try {
+			if (incremental) {
+				PendingFile pendingCache = new PendingFile(fileCache);
+				pendingFiles.add(pendingCache);
+				openCache(fileCache, pendingCache.getFile());
+			}
+			if (writeCellTable) {
+				PendingFile pendingTable = new PendingFile(CellTable.getCellTableFile(filePhylo));
+				pendingFiles.add(pendingTable);
+				cellTableFile = pendingTable.getFile();
+			}
+			if (memoryBudget > 0) {
+				spool = new FrameSpool(memoryBudget, LineageExporter.getMetaFile(filePhylo), framesPerShard, numThreads);
+			}
+			if (writeIndex) {
+				if (format.isGzip()) {
+					logger.log("  No index is written for compressed files.\n");
+				} else {
+					exportIndex = new ExportIndex();
+				}
+			}
+			if (contours == ContourFormat.FILE) {
+				PendingFile pendingContours = new PendingFile(ContourFile.getContourFile(filePhylo));
+				pendingFiles.add(pendingContours);
+				contourFileTemp = pendingContours.getFile();
+			}
+			
+			StringBuilder errors = new StringBuilder();
+			
+			logger.log("Writing phyloXML to "+(tracksPerShard > 0 ? ShardManifest.getPhyloShardFile(filePhylo, 0) : filePhylo).getPath()+"\n");
+			ExportMetrics.Phase writingPhylo = metrics.begin("Writing phyloXML", "bytes");
+			PhyloWriter phyloWriter = new PhyloWriter(filePhylo, pendingFiles, writingPhylo);
+			Future<Void> phyloResult = writerExecutor.submit(phyloWriter);
+			marshallModel(model, phyloWriter);
+			phyloWriter.finish();
+			if (spool != null && spool.getRuns() > 0) {
+				logger.log("  Spilled " + spool.getSpilledBytes() + " bytes of frames to " + spool.getRuns() + " temporary file(s).\n");
+			}
+			
+			if (cellTable != null) {
+				try {
+					closeCellTable();
+				} catch (IOException e) {
+					errors.append("Trouble writing cell table:\n" + e.getMessage() + "\n");
+				}
+			}
+			
+			if (contourFile != null) {
+				try {
+					closeContourFile();
+				} catch (IOException e) {
+					errors.append("Trouble writing contours:\n" + e.getMessage() + "\n");
+				}
+			}
+			
+			if (cacheWriter != null) {
+				logger.log("  Reused " + reusedTracks + " unchanged tracks.\n");
+				try {
+					cacheWriter.close();
+				} catch (IOException e) {
+					errors.append("Trouble writing to "+fileCache+":\n" + e.getMessage() + "\n");
+				}
+			}
+			
+			File fileMeta = framesPerShard > 0 ? ShardManifest.getMetaShardFile(filePhylo, 0) : LineageExporter.getMetaFile(filePhylo);
+			logger.log("Writing metaXML to "+fileMeta.getPath()+"\n");
+			try {
+				ExportMetrics.Phase writingMeta = metrics.begin("Writing metaXML", "bytes");
+				writeMetaShards(filePhylo, pendingFiles);
+				writingMeta.end(manifest.getMetaBytes());
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				errors.append("Trouble writing metaXML:\n" + e.getMessage() + "\n");
+			}
+			
+			try {
+				await(phyloResult);
+				writingPhylo.end(manifest.getPhyloBytes());
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				errors.append("Trouble writing phyloXML:\n" + e.getMessage() + "\n");
+			}
+			
+			if (errors.length() > 0) {
+				throw new IOException(errors.toString().trim());
+			}
+			
+			PendingFile pendingManifest = null;
+			if (sharded) {
+				pendingManifest = new PendingFile(ShardManifest.getManifestFile(filePhylo));
+				pendingFiles.add(pendingManifest);
+				manifest.write(pendingManifest.getFile(), projectName, metrics.tracks, metrics.phylogenies, metrics.spots, metrics.frames);
+			}
+			
+			if (exportIndex != null) {
+				PendingFile pendingIndex = new PendingFile(ExportIndex.getIndexFile(filePhylo));
+				pendingFiles.add(pendingIndex);
+				exportIndex.write(pendingIndex.getFile());
+			}
+			
+			// The old cache has to be closed before it can be replaced
+			closeCache();
+			
+			// The phyloXML is published last, the manifest lists its shards
+			List<PendingFile> commitOrder = new ArrayList<PendingFile>(pendingFiles);
+			commitOrder.removeAll(phyloWriter.getDocuments());
+			commitOrder.remove(pendingManifest);
+			commitOrder.addAll(phyloWriter.getDocuments());
+			if (pendingManifest != null) {
+				commitOrder.add(pendingManifest);
+			}
+			commit(commitOrder);
+			success = true;
+		} catch (ClosedByInterruptException e) {
+			// A file channel has been closed by the cancellation
+			throw new InterruptedIOException("Export has been canceled");
+		} finally {
+			writerExecutor.shutdownNow();
+			closeCache();
+			if (spool != null) {
+				// The metaXML has been written or the export has failed
+				spool.delete();
+			}
+			if (cellTable != null) {
+				try {
+					closeCellTable();
+				} catch (IOException e) {
+					// The export has already failed
+				}
+			}
+			if (contourFile != null) {
+				try {
+					closeContourFile();
+				} catch (IOException e) {
+					// The export has already failed
+				}
+			}
+			if (!success) {
+				// The writer has to close its file before it can be removed
+				awaitTermination(writerExecutor);
+				if (cacheWriter != null) {
+					cacheWriter.abort();
+				}
+				for (PendingFile pending : pendingFiles) {
+					pending.discard();
+				}
+			}
+		}
+		
+		manifest.deleteStaleShards(filePhylo, sharded);
+		
+		logger.log("  Wrote " + manifest.getPhyloBytes() + " bytes of phyloXML in " + manifest.getPhyloShards() + " file(s) and "
+				+ manifest.getMetaBytes() + " bytes of metaXML in " + manifest.getMetaShards() + " file(s).\n");
+		metrics.logSummary();
+		if (writeMetrics) {
+			File fileMetrics = ExportMetrics.getMetricsFile(filePhylo);
+			try {
+				metrics.writeJson(fileMetrics, filePhylo);
+			} catch (IOException e) {
+				logger.error("Trouble writing metrics to " + fileMetrics + ":\n" + e.getMessage());
+			}
+		}
+		logger.log("Done.\n");
+	}
+	
+	/**
+	 * Moves the written files to their targets in the given order. The files
+	 * cannot be replaced at once: if a file cannot be moved, those that have
+	 * been moved before belong to the new export while the others still
+	 * belong to the previous one. They are listed in the error.
+	 * 
+	 * @param files
+	 *            The written files, the phyloXML last
+	 */
+	private static void commit(List<PendingFile> files) throws IOException {
+		for (int i = 0; i < files.size(); i++) {
+			try {
+				files.get(i).commit();
+			} catch (IOException e) {
+				if (i == 0) {
+					throw e;
+				}
+				StringBuilder message = new StringBuilder(e.getMessage());
+				message.append("\nThe following files have already been replaced and are inconsistent with the remaining files of the previous export:");
+				for (int j = 0; j < i; j++) {
+					message.append("\n  ").append(files.get(j).getTarget());
+				}
+				throw new IOException(message.toString());
+			}
+		}
+	}
+	
+	/**
+	 * Waits until a stopped executor has terminated, for at most 10 seconds.
+	 * A canceled export is still interrupted, hence the interruption is
+	 * cleared while waiting and kept for the caller afterwards.
+	 */
+	private static void awaitTermination(ExecutorService executor) {
+		boolean interrupted = Thread.interrupted();
+		try {
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			long remaining;
+			while (!executor.isTerminated() && (remaining = deadline - System.nanoTime()) > 0) {
+				try {
+					executor.awaitTermination(remaining, TimeUnit.NANOSECONDS);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Stops the export if the thread has been interrupted, i.e. if the export
+	 * has been canceled.
+	 */
+	private void checkCanceled() throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Export has been canceled");
+		}
+	}
+	
+	/**
+	 * Opens the cache of the previous export and the writer of the new cache.
+	 * A cache that cannot be read is ignored, all tracks are marshalled then.
+	 * 
+	 * @param fileCache
+	 *            The cache of the previous export
+	 * @param tempCache
+	 *            The file to which the new cache is written
+	 */
+	private void openCache(File fileCache, File tempCache) throws IOException {
+		// Fragments depend on the indentation and on the mapped features
+		long settings = FragmentCache.hash(FragmentCache.FNV_OFFSET, format.isCompact() ? 1L : 0L);
+		settings = featureWriter.hashMapping(settings);
+		if (contours == ContourFormat.INLINE) {
+			// The outlines are part of the cells
+			settings = FragmentCache.hash(settings, pixelSize);
+		}
+		
+		try {
+			cache = FragmentCache.open(fileCache, settings);
+		} catch (IOException e) {
+			logger.log("  Ignoring unreadable cache " + fileCache + ": " + e.getMessage() + "\n");
+		}
+		cacheWriter = new FragmentCache.Writer(tempCache, settings);
+	}
+	
+	/**
+	 * Closes the cache of the previous export.
+	 */
+	private void closeCache() {
+		if (cache != null) {
+			try {
+				cache.close();
+			} catch (IOException e) {
+				// Nothing has been written to it
+			}
+			cache = null;
+		}
+	}
+	
+	/**
+	 * Closes the cell table after all tracks have been marshalled.
+	 */
+	private void closeCellTable() throws IOException {
+		CellTable table = cellTable;
+		cellTable = null;
+		table.close();
+	}
+	
+	/**
+	 * Closes the contour file after all tracks have been merged.
+	 */
+	private void closeContourFile() throws IOException {
+		ContourFile file = contourFile;
+		contourFile = null;
+		file.close();
+	}
+	
+	/**
+	 * Computes the population of every frame and the number of frames, unless
+	 * it is given by the settings. This has to precede the marshalling of the
+	 * model.
+	 * 
+	 * @param model
+	 *            The view of the TrackMate {@link Model} that will be
+	 *            exported
+	 */
+	void prepare(final ModelView model) throws IOException {
+		metrics = new ExportMetrics(logger);
+		ExportMetrics.Phase preparing = metrics.begin("Preparing", "spots");
+		population = PopulationStatistics.compute(model.getSpots(), firstFrame, lastFrame,
+				writePopulationStatistics ? featureWriter : null, numThreads);
+		framesMap = new FrameBuckets(population.getNFrames());
+		if (nframes == 0) {
+			nframes = population.getNFrames();
+		}
+		preparing.end(model.getSpots().getNSpots(true));
+	}
+	
+	/**
+	 * Writes the metaXML from the frames that have been collected while
+	 * marshalling the model.
+	 * 
+	 * @param file
+	 *            The destination of the metaXML
+	 */
+	void writeMeta(File file) throws IOException {
+		writeMeta(file, framesMap, null);
+	}
+	
+	/**
+	 * Writes a metaXML document with the provided frames.
+	 * 
+	 * @param file
+	 *            The destination of the metaXML
+	 * @param frames
+	 *            The frames of the document
+	 * @param document
+	 *            The document in the index, {@code null} if no index is
+	 *            written
+	 */
+	private void writeMeta(File file, FrameBuckets frames, ExportIndex.Document document) throws IOException {
+		Writer out = document != null ? document.open(format, file) : format.openWriter(file);
+		FrameSpool.Merger spilled = null;
+		try {
+			XmlWriter rootMeta = format.newXmlWriter(out, 0);
+			marshallMeta(rootMeta);
+			
+			if (spool != null && frames.size() > 0) {
+				spilled = spool.open(frames.frame(0));
+			}
+			for (int i = 0; i < frames.size(); i++) {
+				checkCanceled();
+				if (document != null) {
+					document.startElement();
+				}
+				
+				// Spilled content precedes the content that is still buffered
+				if (spilled != null) {
+					spilled.copy(frames.frame(i), rootMeta);
+				}
+				
+				// Close the <frame> before it is appended to the document
+				FrameBuffer frame = frames.buffer(i);
+				frame.writer.endDocument();
+				rootMeta.fragment(frame.buffer);
+				if (document != null) {
+					document.endElement(frames.frame(i));
+				}
+			}
+			
+			rootMeta.endDocument();
+		} finally {
+			if (spilled != null) {
+				spilled.close();
+			}
+			out.close();
+		}
+		if (document != null) {
+			document.close(file.length());
+		}
+	}
+	
+	/**
+	 * Writes the metaXML, either to a single document or to one document per
+	 * range of frames. Shards are independent of each other and are written
+	 * concurrently.
+	 * 
+	 * @param filePhylo
+	 *            The destination of the phyloXML
+	 * @param pendingFiles
+	 *            The temporary files of the export, the documents are added
+	 */
+	private void writeMetaShards(final File filePhylo, final List<PendingFile> pendingFiles) throws IOException {
+		logger.log("  Writing metadata to file.\n");
+		
+		// Group the frames by shard, the order of the frames is kept
+		final TreeMap<Integer, FrameBuckets> shards = new TreeMap<Integer, FrameBuckets>();
+		for (int i = 0; i < framesMap.size(); i++) {
+			int frame = framesMap.frame(i);
+			int index = framesPerShard > 0 ? frame / framesPerShard : 0;
+			FrameBuckets shard = shards.get(index);
+			if (shard == null) {
+				shard = new FrameBuckets();
+				shards.put(index, shard);
+			}
+			shard.put(frame, framesMap.buffer(i));
+		}
+		if (shards.isEmpty()) {
+			shards.put(0, new FrameBuckets());
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, shards.size()));
+		boolean finished = false;
+		try {
+			List<PendingFile> pendingShards = new ArrayList<PendingFile>(shards.size());
+			List<Future<Void>> results = new ArrayList<Future<Void>>(shards.size());
+			for (Map.Entry<Integer, FrameBuckets> shard : shards.entrySet()) {
+				File file = framesPerShard > 0 ? ShardManifest.getMetaShardFile(filePhylo, shard.getKey()) : LineageExporter.getMetaFile(filePhylo);
+				final PendingFile pending = new PendingFile(file);
+				pendingFiles.add(pending);
+				pendingShards.add(pending);
+				
+				final FrameBuckets frames = shard.getValue();
+				final ExportIndex.Document document = exportIndex == null ? null
+						: exportIndex.addDocument(ExportIndex.METAXML, shard.getKey(), pending.getTarget());
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						writeMeta(pending.getFile(), frames, document);
+						return null;
+					}
+				}));
+			}
+			
+			int i = 0;
+			for (FrameBuckets frames : shards.values()) {
+				await(results.get(i));
+				
+				int firstFrame = frames.size() == 0 ? 0 : Integer.MAX_VALUE;
+				int lastFrame = -1;
+				for (int f = 0; f < frames.size(); f++) {
+					firstFrame = Math.min(firstFrame, frames.frame(f));
+					lastFrame = Math.max(lastFrame, frames.frame(f));
+				}
+				PendingFile pending = pendingShards.get(i);
+				manifest.addMeta(pending.getTarget(), firstFrame, lastFrame, frames.size(), pending.getFile().length());
+				i++;
+			}
+			finished = true;
+		} finally {
+			executor.shutdownNow();
+			if (!finished) {
+				// The writers have to close their files before they can be removed
+				awaitTermination(executor);
+			}
+		}
+	}
+	
+	/**
+	 * This method creates both phyloXML and metaXML in one run. In contrast to
+	 * previous implementations, the integrated export of both files uses the
+	 * property that {@link Clade}s and {@link Cells} originate from the same
+	 * {@link Spot}.
+	 * <p>
+	 * No DOM is built: the phyloXML is handed over to the provided writer
+	 * while the track graph is walked. Since the metaXML is grouped by frame,
+	 * its cells are serialized into per-frame buffers and written with
+	 * {@link #writeMeta(File)} afterwards.
+	 * <p>
+	 * Tracks are marshalled concurrently by {@link TrackTask}s. Each task gets
+	 * its own range of cell IDs and its own frame buckets. The results are
+	 * merged in track order, hence the output is identical to a sequential
+	 * run.
+	 * <p>
+	 * The filters of the {@link ExportSettings} are applied while the tracks
+	 * are indexed: edges of other tracks and edges into excluded frames are
+	 * not indexed, hence excluded Spots are never visited. A lineage that
+	 * enters the range of frames after it has divided yields one phylogeny
+	 * per entering cell.
+	 * 
+	 * @param model
+	 *            The view of the TrackMate {@link Model} that will be
+	 *            exported
+	 * @param phyloWriter
+	 *            The writer of the phyloXML
+	 */
+	private void marshallModel(final ModelView model, final PhyloWriter phyloWriter) throws IOException {
+		logger.log("  Marshalling lineage trees.\n");
+		final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			Set<Integer> trackIDs = selectTracks(model);
+			
+			// Outgoing edges are looked up for every Spot, index them once
+			ExportMetrics.Phase indexing = metrics.begin("Indexing tracks", "tracks");
+			Map<Integer, List<Spot>> enteringSpots = new HashMap<Integer, List<Spot>>();
+			Map<Spot, List<Spot>> successors = indexSuccessors(model, trackIDs, enteringSpots);
+			indexing.pause();
+			
+			ExportMetrics.Phase marshalling = metrics.begin("Marshalling tracks", "spots");
+			ExportMetrics.Phase aggregating = metrics.begin("Aggregating frames", "frames");
+			aggregating.pause();
+			
+			// Find the first Spot of each phylogeny and reserve the IDs of its cells
+			indexing.resume();
+			Map<Integer, Spot> firstSpots = indexRoots(model, trackIDs);
+			List<Integer> lineageTracks = new ArrayList<Integer>(trackIDs.size());
+			List<Spot> roots = new ArrayList<Spot>(trackIDs.size());
+			for (Integer id : trackIDs) {
+				checkCanceled();
+				Spot first = firstSpots.get(id);
+				if (first == null || !acceptRoot(first)) {
+					continue;
+				}
+				if (isInFrameRange(first)) {
+					lineageTracks.add(id);
+					roots.add(first);
+				}
+				List<Spot> entering = enteringSpots.get(id);
+				if (entering != null) {
+					for (Spot spot : entering) {
+						lineageTracks.add(id);
+						roots.add(spot);
+					}
+				}
+			}
+			metrics.tracks = new HashSet<Integer>(lineageTracks).size();
+			metrics.phylogenies = roots.size();
+			
+			int[] cells = new int[roots.size()];
+			int totalCells = 0;
+			for (int t = 0; t < roots.size(); t++) {
+				checkCanceled();
+				cells[t] = countCells(roots.get(t), successors);
+				totalCells += cells[t];
+			}
+			indexing.pause();
+			
+			if (cellTableFile != null) {
+				cellTable = new CellTable(cellTableFile, totalCells, featureWriter);
+			}
+			if (contourFileTemp != null) {
+				contourFile = new ContourFile(contourFileTemp, totalCells);
+			}
+			
+			LinkedList<Future<TrackTask>> pending = new LinkedList<Future<TrackTask>>();
+			for (int t = 0; t < roots.size(); t++) {
+				checkCanceled();
+				pending.add(executor.submit(new TrackTask(lineageTracks.get(t), roots.get(t), successors, counter, cells[t])));
+				counter += cells[t];
+				
+				// Limit the number of marshalled tracks that wait for being written
+				if (pending.size() >= MAX_PENDING_TRACKS_PER_THREAD * numThreads) {
+					mergeTrack(await(pending.removeFirst()), phyloWriter, aggregating);
+					metrics.progress(marshalling, mergedTracks, mergedSpots);
+				}
+			}
+			
+			while (!pending.isEmpty()) {
+				checkCanceled();
+				mergeTrack(await(pending.removeFirst()), phyloWriter, aggregating);
+				metrics.progress(marshalling, mergedTracks, mergedSpots);
+			}
+			
+			metrics.spots = counter;
+			metrics.frames = framesMap.size();
+			indexing.end(metrics.tracks);
+			marshalling.end(counter);
+			aggregating.end(framesMap.size());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	/**
+	 * Marshalls the model into memory only, the phylogenies are dropped. The
+	 * frames of the metaXML are kept and can be written with
+	 * {@link #writeMeta(File)}. Used to measure the marshalling on its own.
+	 * 
+	 * @param model
+	 *            The view of the TrackMate {@link Model} that will be
+	 *            exported
+	 */
+	void marshallModel(final ModelView model) throws IOException {
+		marshallModel(model, null);
+	}
+	
+	/**
+	 * Merges the results of a {@link TrackTask}: the phylogeny is handed over
+	 * to the writer of the phyloXML and its cells are appended to the frames
+	 * of the metaXML.
+	 * 
+	 * @param task
+	 *            A completed {@link TrackTask}
+	 * @param phyloWriter
+	 *            The writer of the phyloXML, {@code null} to drop the
+	 *            phylogeny
+	 * @param aggregating
+	 *            The phase that measures the aggregation of the frames
+	 */
+	private void mergeTrack(TrackTask task, PhyloWriter phyloWriter, ExportMetrics.Phase aggregating) throws IOException {
+		if (phyloWriter != null) {
+			phyloWriter.write(new Phylogeny(task.trackID, task.firstID, task.cellCount, task.phylogeny));
+		}
+		aggregating.resume();
+		int chars = 0;
+		for (int i = 0; i < task.frames.size(); i++) {
+			StringBuilder cells = task.frames.buffer(i).buffer;
+			// The growth of the frame includes its header if it is new
+			FrameBuffer frame = getFrame(task.frames.frame(i));
+			int length = frame.buffer.length();
+			frame.writer.fragment(cells);
+			chars += frame.buffer.length() - length;
+		}
+		if (spool != null) {
+			spool.added(framesMap, chars);
+		}
+		aggregating.pause();
+		
+		if (contourFile != null) {
+			contourFile.append(task.firstID, task.contourOffsets, task.contourBytes);
+		}
+		
+		mergedTracks++;
+		mergedSpots += task.cellCount;
+		
+		if (cacheWriter != null) {
+			cacheWriter.add(task.root.ID(), task.fragments);
+			if (task.reused) {
+				reusedTracks++;
+			}
+		}
+	}
+	
+	/**
+	 * Waits for the result of a task. Failures of the task are rethrown.
+	 */
+	private static <T> T await(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Export has been interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Collects the children of every Spot, i.e. the targets of its outgoing
+	 * edges, in a single pass over the edges of the {@link TrackModel}. The
+	 * children of a Spot are kept in the order in which its edges have been
+	 * added to the model.
+	 * <p>
+	 * Edges of tracks that are not exported and edges into frames that are
+	 * not exported are skipped, which prunes their subtrees. Spots whose
+	 * lineage enters the range of frames, i.e. whose parents all precede the
+	 * range, start phylogenies of their own and are collected by track.
+	 * 
+	 * @param model
+	 *            The view of the exported {@link Model}
+	 * @param trackIDs
+	 *            The IDs of the exported tracks
+	 * @param enteringSpots
+	 *            The Spots that enter the range of frames are added, by
+	 *            track ID and sorted by frame
+	 * @return The children of all Spots that have outgoing edges.
+	 */
+	private Map<Spot, List<Spot>> indexSuccessors(final ModelView model, final Set<Integer> trackIDs, final Map<Integer, List<Spot>> enteringSpots) {
+		Map<Spot, List<Spot>> successors = new HashMap<Spot, List<Spot>>();
+		Set<Spot> entering = new LinkedHashSet<Spot>();
+		for (DefaultWeightedEdge edge : model.edgeSet()) {
+			if (selectedTracks != null && !trackIDs.contains(model.trackIDOf(edge))) {
+				continue;
+			}
+			Spot source = model.getEdgeSource(edge);
+			Spot target = model.getEdgeTarget(edge);
+			if (frameRangeLimited) {
+				if (!isInFrameRange(target)) {
+					continue;
+				}
+				if (!isInFrameRange(source)) {
+					entering.add(target);
+					continue;
+				}
+			}
+			
+			List<Spot> children = successors.get(source);
+			if (children == null) {
+				children = new ArrayList<Spot>(2);
+				successors.put(source, children);
+			}
+			children.add(target);
+		}
+		
+		for (Spot spot : entering) {
+			// Merging lineages are continued by the parent within the range
+			if (hasParentInFrameRange(model, spot)) {
+				continue;
+			}
+			Integer trackID = model.trackIDOf(spot);
+			List<Spot> spots = enteringSpots.get(trackID);
+			if (spots == null) {
+				spots = new ArrayList<Spot>();
+				enteringSpots.put(trackID, spots);
+			}
+			spots.add(spot);
+		}
+		for (List<Spot> spots : enteringSpots.values()) {
+			Collections.sort(spots, new Comparator<Spot>() {
+				@Override
+				public int compare(Spot spot, Spot other) {
+					return isBefore(spot, other) ? -1 : isBefore(other, spot) ? 1 : 0;
+				}
+			});
+		}
+		return successors;
+	}
+	
+	private boolean hasParentInFrameRange(final ModelView model, final Spot spot) {
+		for (DefaultWeightedEdge edge : model.edgesOf(spot)) {
+			Spot source = model.getEdgeSource(edge);
+			if (source != spot && model.getEdgeTarget(edge) == spot && isInFrameRange(source)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return The IDs of the visible tracks that have been selected by the
+	 *         settings, in the order of the {@link TrackModel}.
+	 */
+	private Set<Integer> selectTracks(final ModelView model) {
+		Set<Integer> visible = model.visibleTrackIDs();
+		if (selectedTracks == null) {
+			return visible;
+		}
+		Set<Integer> trackIDs = new LinkedHashSet<Integer>();
+		for (Integer id : visible) {
+			if (selectedTracks.contains(id)) {
+				trackIDs.add(id);
+			}
+		}
+		return trackIDs;
+	}
+	
+	/**
+	 * @return Whether the first Spot of a track passes all root filters.
+	 */
+	private boolean acceptRoot(final Spot spot) {
+		for (FeatureFilter filter : rootFilters) {
+			Double value = spot.getFeature(filter.feature);
+			if (value == null) {
+				return false;
+			}
+			if (filter.isAbove ? value < filter.value : value > filter.value) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private boolean isInFrameRange(final Spot spot) {
+		int frame = spot.getFeature(Spot.FRAME).intValue();
+		return frame >= firstFrame && frame <= lastFrame;
+	}
+	
+	/**
+	 * Finds the first Spot of every visible track, i.e. the Spot with the
+	 * lowest frame, in a single pass over the Spots of the
+	 * {@link TrackModel}. Ties are broken by the lower Spot ID, so that the
+	 * result does not depend on the iteration order of the model.
+	 * 
+	 * @param model
+	 *            The view of the exported {@link Model}
+	 * @param trackIDs
+	 *            The IDs of the visible tracks
+	 * @return The first Spot of each visible track, by track ID.
+	 */
+	private static Map<Integer, Spot> indexRoots(final ModelView model, final Set<Integer> trackIDs) {
+		Map<Integer, Spot> roots = new HashMap<Integer, Spot>(2 * trackIDs.size());
+		for (Spot spot : model.vertexSet()) {
+			Integer trackID = model.trackIDOf(spot);
+			if (trackID == null || !trackIDs.contains(trackID)) {
+				continue;
+			}
+			
+			Spot root = roots.get(trackID);
+			if (root == null || isBefore(spot, root)) {
+				roots.put(trackID, spot);
+			}
+		}
+		return roots;
+	}
+	
+	private static boolean isBefore(final Spot spot, final Spot other) {
+		int cmp = Double.compare(spot.getFeature(Spot.FRAME), other.getFeature(Spot.FRAME));
+		return cmp < 0 || (cmp == 0 && spot.ID() < other.ID());
+	}
+	
+	/**
+	 * @return The children of the provided Spot.
+	 */
+	private static List<Spot> childrenOf(Spot spot, Map<Spot, List<Spot>> successors) {
+		List<Spot> children = successors.get(spot);
+		return children == null ? Collections.<Spot>emptyList() : children;
+	}
+	
+	/**
+	 * Counts the cells that {@link TrackTask} generates for the provided Spot
+	 * and its descendants.
+	 */
+	private static int countCells(Spot spot, Map<Spot, List<Spot>> successors) {
+		int count = 0;
+		ArrayDeque<Spot> stack = new ArrayDeque<Spot>();
+		stack.push(spot);
+		while (!stack.isEmpty()) {
+			Spot current = stack.pop();
+			count++;
+			
+			for (Spot child : childrenOf(current, successors)) {
+				stack.push(child);
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Writes the scaffold of the PhyloXML, i.e. the declaration, the start
+	 * tag of the root element and the project name.
+	 * 
+	 * @param root
+	 *            The writer of the PhyloXML.
+	 */
+	private void marshallPhylo(XmlWriter root) throws IOException {
+		root.writeDeclaration();
+		root.startElement(PHYLOXML_KEY);
+		
+		/*
+		 * Generate header with namespace declarations and schema location. The
+		 * namespace of the element comes first, the remaining declarations are
+		 * ordered by prefix.
+		 */
+		root.attribute(XMLNS_ATTR, PHYLOXML_NAMESPACE);
+		root.attribute(XMLNS_ATTR + ":" + METAXML_PREFIX, METAXML_NAMESPACE);
+		root.attribute(XMLNS_ATTR + ":" + XSI_PREFIX, XSI_NAMESPACE);
+		root.attribute(XSI_PREFIX + ":" + SCHEMALOCATION_ATTR, PHYLOXML_NAMESPACE + " http://www.phyloxml.org/1.10/phyloxml.xsd");
+		
+		/* Add projectName to PhyloXML */
+		root.textElement(METAXML_PREFIX + ":" + PROJNAME_KEY, this.projectName);
+	}	
+
+	/**
+	 * Writes the cell Element for a spot.
+	 * 
+	 * @param spot
+	 *            The Spot that is to be exported
+	 * @param id
+	 *            The ID of the cell
+	 * @param values
+	 *            Scratch array of the calling thread for the mapped features
+	 * @param contour
+	 *            The encoder of the calling thread for the outline of the
+	 *            cell, {@code null} if it is not written to the cell
+	 * @param out
+	 *            The writer of the frame to which the cell belongs
+	 */
+	void generateCellForSpot(Spot spot, int id, Double[] values, ContourEncoder contour, XmlWriter out) throws IOException {
+		// <cell ...>
+		out.startElement(CELL_KEY);
+		out.attribute(ID_ATT, id);
+		
+		// Cell features
+		Map<String, Double> features = spot.getFeatures();
+		
+		// <center ...>
+		Double centerX = features.get(Spot.POSITION_X);
+		Double centerY = features.get(Spot.POSITION_Y);
+//		Double centerZ = features.get(Spot.POSITION_Z);
+		if (centerX != null && centerY != null) {
+			out.startElement(CENTER_KEY);
+			
+			// X coordinate
+			out.startElement(X_KEY).attribute(UNIT_ATTR, "um");
+			out.text(centerX, 2).endElement();
+			
+			// Y coordinate
+			out.startElement(Y_KEY).attribute(UNIT_ATTR, "um");
+			out.text(centerY, 2).endElement();
+			
+			out.endElement();
+		}
+		
+		// <length ...>, <area ...>, <fluorescences ...>
+		featureWriter.write(features, values, out);
+		
+		// <contour>
+		if (contour != null) {
+			CharSequence roi = contour.encodeBase64(spot);
+			if (roi != null) {
+				out.startElement(CONTOUR_KEY).unescapedText(roi).endElement();
+			}
+		}
+		
+		out.endElement();
+	}
+	
+	/**
+	 * Writes the scaffold of the MetaXML, i.e. the declaration, the start tag
+	 * of the root element, the project name and the experiment duration.
+	 * 
+	 * @param root
+	 *            The writer of the MetaXML.
+	 */
+	private void marshallMeta(XmlWriter root) throws IOException {
+		root.writeDeclaration();
+		root.startElement(METAINFO_KEY);
+		
+		/*
+		 * Generate header with namespace declarations and schema location
+		 */
+		root.attribute(XMLNS_ATTR, METAXML_NAMESPACE);
+		root.attribute(XMLNS_ATTR + ":" + XSI_PREFIX, XSI_NAMESPACE);
+		root.attribute(XSI_PREFIX + ":" + SCHEMALOCATION_ATTR, METAXML_NAMESPACE + " metaXML-2.6.0.xsd");
+		
+		root.textElement(PROJNAME_KEY, this.projectName);
+		
+		/*
+		 * Calculate the experiments duration
+		 */
+		double duration = (nframes - 1) * interval;
+		
+		// Force "correct" formatting
+		root.startElement(EXPDUR_KEY).attribute(UNIT_ATTR, "min");
+		root.text(duration, 0).endElement();
+	}
+	
+	/**
+	 * Compute the frame buffer that will surround the cell Elements of the
+	 * provided frame. Either an existing frame will be returned or a new one
+	 * will be created and returned.
+	 * 
+	 * @param frame
+	 *            The frame for which to compute the fitting frame buffer.
+	 * @return The buffer of the frame in which the cell Elements will be
+	 *         located
+	 */
+	private FrameBuffer getFrame(int frame) throws IOException {
+		FrameBuffer frameBuffer = framesMap.get(frame);
+		if (frameBuffer == null) {
+			frameBuffer = createFrame(frame);
+			framesMap.put(frame, frameBuffer);
+		}
+		return frameBuffer;
+	}
+	
+	/**
+	 * Creates the buffer of a frame with the {@code <frame>} start tag, the
+	 * elapsed time and the population. The {@code <frame>} element is left
+	 * open for the cells.
+	 * 
+	 * @param frame
+	 *            The frame that is to be created
+	 * @return The buffer of the frame.
+	 */
+	FrameBuffer createFrame(int frame) throws IOException {
+		FrameBuffer frameBuffer = new FrameBuffer(1, format);
+		XmlWriter frameWriter = frameBuffer.writer;
+		
+		// Generate <frame id="0">
+		frameWriter.startElement(FRAME_KEY);
+		frameWriter.attribute(ID_ATT, frame);
+		
+		/*
+		 * Generate content
+		 */
+		double elpsdTime = frame * interval;  // frame is 0-based
+		frameWriter.startElement(ELAPSEDTIME_KEY).attribute(UNIT_ATTR, "min");
+		frameWriter.text(elpsdTime, 0).endElement();
+		
+		/*
+		 * TODO Background fluorescence
+		 */
+		// TODO Compute center of mass for all cells
+		double centerX = population.getCenterX(frame);
+		double centerY = population.getCenterY(frame);
+		
+		// <population>
+		frameWriter.startElement(POPULATION_KEY);
+		frameWriter.attribute(ID_ATT, populationCounter++);
+		frameWriter.startElement(CENTER_KEY);
+		
+		// X coordinate
+		frameWriter.startElement(X_KEY).attribute(UNIT_ATTR, "um");
+		frameWriter.text(centerX, 2).endElement();
+		
+		// Y coordinate
+		frameWriter.startElement(Y_KEY).attribute(UNIT_ATTR, "um");
+		frameWriter.text(centerY, 2).endElement();
+		
+		frameWriter.endElement();
+		
+		if (population.hasFeatures()) {
+			frameWriter.startElement(COUNT_KEY).text(population.getCount(frame)).endElement();
+			population.writeFeatures(frame, frameWriter);
+		}
+		frameWriter.endElement();
+		
+		return frameBuffer;
+	}
+	
+	/**
+	 * Serialized content of a single {@code <frame>} of the MetaXML. A frame
+	 * buffer either holds a complete frame, whose element stays open until the
+	 * MetaXML is written, or the cells that a single track contributes to it.
+	 */
+	static class FrameBuffer {
+		final StringBuilder buffer = new StringBuilder();
+		final XmlWriter writer;
+		/** Positions of the cell IDs, only recorded for the cache */
+		FragmentCache.IdPositions ids;
+		
+		FrameBuffer(int depth, OutputFormat format) {
+			writer = format.newXmlWriter(buffer, depth);
+		}
+	}
+	
+	/**
+	 * A serialized {@code <phylogeny>} and the range of its cell IDs.
+	 */
+	private static final class Phylogeny {
+		final Integer trackID;
+		final int firstCell;
+		final int cells;
+		final CharSequence xml;
+		
+		Phylogeny(Integer trackID, int firstCell, int cells, CharSequence xml) {
+			this.trackID = trackID;
+			this.firstCell = firstCell;
+			this.cells = cells;
+			this.xml = xml;
+		}
+	}
+	
+	/**
+	 * Writes the phyloXML on its own thread. Serialized phylogenies are handed
+	 * over through a bounded queue, so that marshalling, writing and
+	 * compressing overlap. If the export is sharded, a new document is started
+	 * after {@link #tracksPerShard} phylogenies.
+	 */
+	private class PhyloWriter implements Callable<Void> {
+		private final File filePhylo;
+		private final List<PendingFile> pendingFiles;
+		private final ExportMetrics.Phase phase;
+		private final BlockingQueue<Phylogeny> queue = new ArrayBlockingQueue<Phylogeny>(MAX_PENDING_TRACKS_PER_THREAD * numThreads);
+		/** Marks the end of the phyloXML */
+		private final Phylogeny end = new Phylogeny(null, 0, 0, "");
+		/** Set as soon as the writer stops taking phylogenies */
+		private volatile boolean closed = false;
+		/** The temporary files of the documents, in the order of the shards */
+		private final List<PendingFile> documents = new ArrayList<PendingFile>();
+		
+		/**
+		 * @param filePhylo
+		 *            The destination of the phyloXML
+		 * @param pendingFiles
+		 *            The temporary files of the export, the documents are
+		 *            added
+		 * @param phase
+		 *            The phase that measures the writing
+		 */
+		PhyloWriter(File filePhylo, List<PendingFile> pendingFiles, ExportMetrics.Phase phase) {
+			this.filePhylo = filePhylo;
+			this.pendingFiles = pendingFiles;
+			this.phase = phase;
+		}
+		
+		/**
+		 * @return The temporary files of the written documents. The writer
+		 *         must have finished.
+		 */
+		List<PendingFile> getDocuments() {
+			return documents;
+		}
+		
+		/**
+		 * Hands a serialized phylogeny over to the writer. Phylogenies are
+		 * dropped if the writer has already failed.
+		 */
+		void write(Phylogeny phylogeny) throws InterruptedIOException {
+			try {
+				while (!closed && !queue.offer(phylogeny, 100, TimeUnit.MILLISECONDS)) {
+					// Wait for the writer
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Export has been interrupted");
+			}
+		}
+		
+		/**
+		 * Signals that all phylogenies have been handed over.
+		 */
+		void finish() throws InterruptedIOException {
+			write(end);
+		}
+		
+		@Override
+		public Void call() throws IOException {
+			PhyloShard shard = null;
+			try {
+				int index = 0;
+				Phylogeny phylogeny;
+				while ((phylogeny = queue.take()) != end) {
+					checkCanceled();
+					if (shard == null) {
+						shard = new PhyloShard(index++);
+					}
+					shard.write(phylogeny);
+					
+					if (shard.tracks == tracksPerShard) {
+						shard.close();
+						shard = null;
+					}
+				}
+				
+				// Without any track, an empty document is written
+				if (index == 0) {
+					shard = new PhyloShard(index++);
+				}
+				if (shard != null) {
+					shard.close();
+					shard = null;
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Export has been interrupted");
+			} finally {
+				closed = true;
+				phase.pause();
+				if (shard != null) {
+					shard.abort();
+				}
+			}
+			return null;
+		}
+		
+		/**
+		 * A single phyloXML document.
+		 */
+		private class PhyloShard {
+			private final PendingFile pending;
+			private final Writer out;
+			private final XmlWriter root;
+			/** The document in the index, if it is written */
+			private final ExportIndex.Document document;
+			
+			private Integer firstTrack;
+			private Integer lastTrack;
+			private int tracks = 0;
+			private int firstCell = 0;
+			private int cells = 0;
+			
+			PhyloShard(int index) throws IOException {
+				pending = new PendingFile(tracksPerShard > 0 ? ShardManifest.getPhyloShardFile(filePhylo, index) : filePhylo);
+				pendingFiles.add(pending);
+				documents.add(pending);
+				if (exportIndex != null) {
+					document = exportIndex.addDocument(ExportIndex.PHYLOXML, index, pending.getTarget());
+					out = document.open(format, pending.getFile());
+				} else {
+					document = null;
+					out = format.openWriter(pending.getFile());
+				}
+				root = format.newXmlWriter(out, 0);
+				marshallPhylo(root);
+			}
+			
+			void write(Phylogeny phylogeny) throws IOException {
+				if (document != null) {
+					document.startElement();
+				}
+				root.fragment(phylogeny.xml);
+				if (document != null) {
+					document.endElement(phylogeny.trackID);
+				}
+				if (tracks == 0) {
+					firstTrack = phylogeny.trackID;
+					firstCell = phylogeny.firstCell;
+				}
+				lastTrack = phylogeny.trackID;
+				tracks++;
+				cells += phylogeny.cells;
+			}
+			
+			void close() throws IOException {
+				try {
+					root.endDocument();
+				} finally {
+					out.close();
+				}
+				if (document != null) {
+					document.close(pending.getFile().length());
+				}
+				manifest.addPhylo(pending.getTarget(), firstTrack, lastTrack, tracks, firstCell, cells, pending.getFile().length());
+			}
+			
+			/**
+			 * Closes the file after a failure, it is discarded anyway.
+			 */
+			void abort() {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// Ignore, the export has already failed
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Marshalls a single track into its own buffers. Apart from the range of
+	 * cell IDs that is assigned to it, a task only reads shared state and can
+	 * hence run concurrently to other tasks.
+	 */
+	private class TrackTask implements Callable<TrackTask> {
+		private final Integer trackID;
+		final Spot root;
+		private final Map<Spot, List<Spot>> successors;
+		private int counter;
+		/** The number of cells of the track */
+		final int cellCount;
+		
+		/** The serialized {@code <phylogeny>} of the track */
+		final StringBuilder phylogeny = new StringBuilder();
+		/** The cells of the track, grouped by frame */
+		final FrameBuckets frames = new FrameBuckets();
+		/** The fragments for the cache, if the export is incremental */
+		FragmentCache.TrackFragments fragments;
+		/** Whether the fragments have been taken from the cache */
+		boolean reused = false;
+		
+		private final int firstID;
+		private final Double[] featureValues = featureWriter.newValues();
+		/** Positions of the cell IDs in the phylogeny, only recorded for the cache */
+		private FragmentCache.IdPositions phylogenyIds;
+		/** The rows of the cell table, if it is written */
+		private CellTable.Chunk cellRows;
+		/** The encoder of the outlines of the worker thread, if they are exported */
+		private ContourEncoder contourEncoder;
+		/** The start of the outline of each cell, if they are written to a file */
+		int[] contourOffsets;
+		/** The outlines of the cells, if they are written to a file */
+		byte[] contourBytes;
+		/** The IDs of the cells whose clades are open */
+		private int[] parentIDs = new int[16];
+		
+		/**
+		 * @param trackID
+		 *            The ID of the track
+		 * @param root
+		 *            The first Spot of the phylogeny
+		 * @param successors
+		 *            The children of each Spot
+		 * @param firstID
+		 *            The ID of the first cell of the track
+		 * @param cellCount
+		 *            The number of cells of the track
+		 */
+		TrackTask(Integer trackID, Spot root, Map<Spot, List<Spot>> successors, int firstID, int cellCount) {
+			this.trackID = trackID;
+			this.root = root;
+			this.successors = successors;
+			this.counter = firstID;
+			this.firstID = firstID;
+			this.cellCount = cellCount;
+		}
+		
+		/**
+		 * Marshalls the track. If the export is incremental, an unchanged
+		 * track is taken from the cache and the fragments of a changed track
+		 * are prepared for the new cache.
+		 */
+		@Override
+		public TrackTask call() throws IOException {
+			CellTable table = cellTable;
+			if (table != null) {
+				cellRows = table.new Chunk(firstID, cellCount);
+			}
+			if (contours != ContourFormat.NONE) {
+				contourEncoder = contourEncoders.get();
+				contourEncoder.reset();
+			}
+			if (contours == ContourFormat.FILE) {
+				contourOffsets = new int[cellCount + 1];
+			}
+			
+			if (cacheWriter == null) {
+				marshallTrack();
+			} else {
+				marshallOrReuseTrack();
+			}
+			
+			if (cellRows != null) {
+				cellRows.write();
+				cellRows = null;
+			}
+			if (contourOffsets != null) {
+				// The encoder is reused by the next track of the thread
+				contourOffsets[cellCount] = contourEncoder.size();
+				contourBytes = Arrays.copyOf(contourEncoder.bytes(), contourEncoder.size());
+			}
+			contourEncoder = null;
+			return this;
+		}
+		
+		/**
+		 * Takes an unchanged track from the cache, or marshalls it and
+		 * prepares its fragments for the new cache.
+		 */
+		private void marshallOrReuseTrack() throws IOException {
+			long fingerprint;
+			if (cache != null && changedTracks != null && !changedTracks.contains(trackID) && cache.contains(root.ID())) {
+				// The track has not been edited since the cache was written
+				fingerprint = cache.getFingerprint(root.ID());
+			} else {
+				fingerprint = fingerprint();
+			}
+			if (cache != null) {
+				fragments = cache.read(root.ID(), fingerprint);
+			}
+			
+			if (fragments != null) {
+				reused = true;
+				if (cellRows != null || contourOffsets != null) {
+					collectSidecars();
+				}
+				fragments.phylogeny.appendTo(phylogeny, firstID);
+				for (int i = 0; i < fragments.frames.length; i++) {
+					FrameBuffer frameBuffer = new FrameBuffer(2, format);
+					fragments.cells[i].appendTo(frameBuffer.buffer, firstID);
+					frames.put(fragments.frames[i], frameBuffer);
+				}
+			} else {
+				phylogenyIds = new FragmentCache.IdPositions();
+				marshallTrack();
+				
+				int[] frameKeys = new int[frames.size()];
+				FragmentCache.Fragment[] cells = new FragmentCache.Fragment[frames.size()];
+				for (int i = 0; i < frames.size(); i++) {
+					FrameBuffer frameBuffer = frames.buffer(i);
+					frameKeys[i] = frames.frame(i);
+					cells[i] = FragmentCache.Fragment.cut(frameBuffer.buffer, frameBuffer.ids, firstID);
+				}
+				fragments = new FragmentCache.TrackFragments(fingerprint,
+						FragmentCache.Fragment.cut(phylogeny, phylogenyIds, firstID), frameKeys, cells);
+			}
+		}
+		
+		/**
+		 * Computes a fingerprint of everything of the track that goes into
+		 * the export: its structure, the Spots and their mapped features. The
+		 * Spots are visited in the same order as by {@link #marshallTrack()}.
+		 */
+		private long fingerprint() throws InterruptedIOException {
+			long hash = FragmentCache.hash(FragmentCache.FNV_OFFSET, trackID.longValue());
+			
+			ArrayDeque<Iterator<Spot>> stack = new ArrayDeque<Iterator<Spot>>();
+			Spot spot = root;
+			while (spot != null) {
+				checkCanceled();
+				List<Spot> children = childrenOf(spot, successors);
+				
+				hash = FragmentCache.hash(hash, spot.ID());
+				hash = FragmentCache.hash(hash, children.size());
+				Map<String, Double> features = spot.getFeatures();
+				hash = hashFeature(hash, features.get(Spot.FRAME));
+				hash = hashFeature(hash, features.get(Spot.POSITION_X));
+				hash = hashFeature(hash, features.get(Spot.POSITION_Y));
+				hash = featureWriter.hash(features, hash);
+				if (contours != ContourFormat.NONE) {
+					hash = hashFeature(hash, features.get(Spot.RADIUS));
+				}
+				
+				stack.push(children.iterator());
+				spot = null;
+				while (spot == null && !stack.isEmpty()) {
+					if (stack.peek().hasNext()) {
+						spot = stack.peek().next();
+					} else {
+						stack.pop();
+					}
+				}
+			}
+			return hash;
+		}
+		
+		private long hashFeature(long hash, Double value) {
+			hash = FragmentCache.hash(hash, value == null ? 0L : 1L);
+			return value == null ? hash : FragmentCache.hash(hash, value.doubleValue());
+		}
+		
+		/**
+		 * Writes the {@link Clade}s of the track. A {@link Clade} has all
+		 * children of its Spot nested. The lineage is traversed with an
+		 * explicit stack, because long tracks would otherwise overflow the
+		 * call stack.
+		 */
+		private void marshallTrack() throws IOException {
+			XmlWriter phylo = format.newXmlWriter(phylogeny, 1);
+			phylo.startElement(PHYLO_KEY);
+			
+			// Add unique identifier for <phylogeny>
+			phylo.startElement(ID_KEY).text(trackID.intValue()).endElement();
+			
+			/*
+			 * PHYLOXML
+			 */
+			ArrayDeque<Iterator<Spot>> stack = new ArrayDeque<Iterator<Spot>>();
+			pushParent(0, marshallSpot(root, -1, phylo));
+			stack.push(childrenOf(root, successors).iterator());
+			
+			while (!stack.isEmpty()) {
+				Iterator<Spot> children = stack.peek();
+				if (children.hasNext()) {
+					checkCanceled();
+					Spot child = children.next();
+					pushParent(stack.size(), marshallSpot(child, parentIDs[stack.size() - 1], phylo));
+					stack.push(childrenOf(child, successors).iterator());
+				} else {
+					// All children have been written, close the clade
+					phylo.endElement();
+					stack.pop();
+				}
+			}
+			
+			phylo.endElement();
+			checkCellCount();
+		}
+		
+		/**
+		 * Collects the rows of the cell table and the outlines of a track that
+		 * is taken from the cache. The Spots are visited in the same order as
+		 * by {@link #marshallTrack()}.
+		 */
+		private void collectSidecars() throws IOException {
+			ArrayDeque<Iterator<Spot>> stack = new ArrayDeque<Iterator<Spot>>();
+			collectSidecars(root, counter, -1);
+			pushParent(0, counter++);
+			stack.push(childrenOf(root, successors).iterator());
+			
+			while (!stack.isEmpty()) {
+				Iterator<Spot> children = stack.peek();
+				if (children.hasNext()) {
+					checkCanceled();
+					Spot child = children.next();
+					collectSidecars(child, counter, parentIDs[stack.size() - 1]);
+					pushParent(stack.size(), counter++);
+					stack.push(childrenOf(child, successors).iterator());
+				} else {
+					stack.pop();
+				}
+			}
+			checkCellCount();
+		}
+		
+		/**
+		 * Checks that the traversal has used exactly the IDs that have been
+		 * reserved for the track. Otherwise, the IDs would overlap with those
+		 * of the next track, which can only happen if the track has been
+		 * changed since its cells were counted.
+		 */
+		private void checkCellCount() throws IOException {
+			if (counter != firstID + cellCount) {
+				throw new IOException("Track " + trackID + " has changed during the export: "
+						+ cellCount + " cells were counted, " + (counter - firstID) + " were traversed.");
+			}
+		}
+		
+		private void collectSidecars(Spot spot, int cellID, int parentID) throws IOException {
+			if (cellRows != null) {
+				featureWriter.lookup(spot.getFeatures(), featureValues);
+				setCellRow(spot, cellID, parentID);
+			}
+			if (contourOffsets != null) {
+				addContour(spot, cellID);
+			}
+		}
+		
+		/**
+		 * Encodes the outline of a cell for the contour file.
+		 */
+		private void addContour(Spot spot, int cellID) throws IOException {
+			contourOffsets[cellID - firstID] = contourEncoder.size();
+			contourEncoder.encode(spot);
+		}
+		
+		/**
+		 * Remembers the ID of the cell whose clade is opened at the provided
+		 * depth.
+		 */
+		private void pushParent(int depth, int cellID) {
+			if (depth == parentIDs.length) {
+				parentIDs = Arrays.copyOf(parentIDs, 2 * depth);
+			}
+			parentIDs[depth] = cellID;
+		}
+		
+		/**
+		 * Sets the row of a cell in the cell table. The mapped features have
+		 * to be looked up into {@link #featureValues} before.
+		 */
+		private void setCellRow(Spot spot, int cellID, int parentID) {
+			Map<String, Double> features = spot.getFeatures();
+			cellRows.set(cellID, features.get(Spot.FRAME).intValue(), parentID,
+					features.get(Spot.POSITION_X), features.get(Spot.POSITION_Y), featureValues);
+		}
+		
+		/**
+		 * Opens the {@link Clade} for the provided Spot. It also generates the
+		 * {@link Cell} and attaches it to the buffer of its frame.
+		 * 
+		 * @param spot
+		 *            The Spot that is to be exported
+		 * @param parentID
+		 *            The ID of the mother cell, -1 for the first cell of the
+		 *            track
+		 * @param phylo
+		 *            The writer of the phylogeny to which the clade is written
+		 * @return The ID of the cell.
+		 */
+		private int marshallSpot(Spot spot, int parentID, XmlWriter phylo) throws IOException {
+			phylo.startElement(CLADE_KEY);
+			
+			// Recompute the IDs to avoid duplications
+			int cellID = counter++;
+			phylo.startElement(NAME_KEY);
+			if (phylogenyIds != null) {
+				// The ID follows the '>' of the start tag
+				phylogenyIds.add(phylogeny.length() + 1, cellID);
+			}
+			phylo.text(cellID).endElement();
+			
+			// TODO Compute the correct branch length
+			phylo.textElement(BRANCHLENGTH_KEY, DEFAULT_BRANCHLENGHT);
+			
+			/*
+			 * METAXML
+			 */
+			int frame = spot.getFeature(Spot.FRAME).intValue();
+			FrameBuffer frameBuffer = frames.get(frame);
+			if (frameBuffer == null) {
+				frameBuffer = new FrameBuffer(2, format);
+				if (phylogenyIds != null) {
+					frameBuffer.ids = new FragmentCache.IdPositions();
+				}
+				frames.put(frame, frameBuffer);
+			}
+			
+			int cellStart = frameBuffer.buffer.length();
+			generateCellForSpot(spot, cellID, featureValues, contours == ContourFormat.INLINE ? contourEncoder : null, frameBuffer.writer);
+			if (frameBuffer.ids != null) {
+				// The ID is the first attribute of the <cell>
+				frameBuffer.ids.add(frameBuffer.buffer.indexOf("\"", cellStart) + 1, cellID);
+			}
+			
+			// The features have been looked up by generateCellForSpot
+			if (cellRows != null) {
+				setCellRow(spot, cellID, parentID);
+			}
+			if (contourOffsets != null) {
+				addContour(spot, cellID);
+			}
+			return cellID;
+		}
+	}
+	
+	/*
+	 * DEFAULT VALUES
+	 */
+	
+	private static final String DEFAULT_BRANCHLENGHT = "1.000000e+00";
+	
+	/** Number of marshalled tracks per thread that may wait for being written */
+	private static final int MAX_PENDING_TRACKS_PER_THREAD = 4;
+	
+	
+	/*
+	 * XML KEYS
+	 */
+	private static final String PHYLOXML_KEY = "phyloxml";
+	private static final String PHYLO_KEY = "phylogeny";
+	private static final String CLADE_KEY = "clade";
+	private static final String NAME_KEY = "name";
+	private static final String BRANCHLENGTH_KEY = "branch_length";
+	
+	private static final String METAINFO_KEY = "metaInformation";
+	private static final String PROJNAME_KEY = "projectName";
+	private static final String EXPDUR_KEY = "experimentDuration";
+	private static final String FRAME_KEY = "frame";
+	private static final String ELAPSEDTIME_KEY = "elapsedTime";
+	private static final String CELL_KEY = "cell";
+	private static final String UNIT_ATTR = "unit";
+	private static final String CENTER_KEY = "center";
+	private static final String X_KEY = "x";
+	private static final String Y_KEY = "y";
+	private static final String POPULATION_KEY = "population";
+	private static final String COUNT_KEY = "count";
+	private static final String CONTOUR_KEY = "contour";
+	
+	private static final String ID_ATT = "id";
+	private static final String ID_KEY = "id";
+	
+	/*
+	 * NAMESPACES
+	 */
+	private static final String PHYLOXML_NAMESPACE = "http://www.phyloxml.org";
+	private static final String METAXML_NAMESPACE = "http://13cflux.net/static/schemas/metaXML/2";
+	private static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+	private static final String METAXML_PREFIX = "metaxml";
+	private static final String XSI_PREFIX = "xsi";
+	private static final String XMLNS_ATTR = "xmlns";
+	private static final String SCHEMALOCATION_ATTR = "schemaLocation";
+		
+}
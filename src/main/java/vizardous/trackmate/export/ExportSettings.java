@@ -0,0 +1,621 @@
+package vizardous.trackmate.export;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import fiji.plugin.trackmate.features.FeatureFilter;
+import vizardous.trackmate.io.OutputFormat;
+
+/**
+ * The settings of a {@link LineageExporter}. Instances are immutable and can
+ * be shared between threads and exports; they are created with a
+ * {@link Builder}:
+ *
+ * <pre>
+ * ExportSettings settings = new ExportSettings.Builder()
+ * 		.projectName("default")
+ * 		.interval(8d)
+ * 		.format(OutputFormat.PRETTY)
+ * 		.build();
+ * </pre>
+ *
+ * The feature mapping is compiled when the settings are built, hence later
+ * changes to the {@link FeatureMapping} do not affect the settings.
+ * <p>
+ * The exported tracks can be narrowed down by their IDs, by filters on their
+ * first Spot and by a range of frames. Filters are applied while the tracks
+ * are indexed, hence excluded tracks and frames are never traversed.
+ */
+public final class ExportSettings {
+
+	private final String projectName;
+	private final double interval;
+	private final int nframes;
+	private final int numThreads;
+	private final CellFeatureWriter featureWriter;
+	private final OutputFormat format;
+	private final boolean incremental;
+	private final boolean writeMetrics;
+	private final boolean writeCellTable;
+	private final boolean writePopulationStatistics;
+	private final boolean writeIndex;
+	private final int tracksPerShard;
+	private final int framesPerShard;
+	private final Set<Integer> trackIDs;
+	private final List<FeatureFilter> rootFilters;
+	private final int firstFrame;
+	private final int lastFrame;
+	private final ContourFormat contours;
+	private final double pixelSize;
+	private final long memoryBudget;
+
+	private ExportSettings(final Builder builder) {
+		this.projectName = builder.projectName;
+		this.interval = builder.interval;
+		this.nframes = builder.nframes;
+		this.numThreads = builder.numThreads;
+		this.featureWriter = builder.featureMapping.compile();
+		this.format = builder.format;
+		this.incremental = builder.incremental;
+		this.writeMetrics = builder.writeMetrics;
+		this.writeCellTable = builder.writeCellTable;
+		this.writePopulationStatistics = builder.writePopulationStatistics;
+		this.writeIndex = builder.writeIndex;
+		this.tracksPerShard = builder.tracksPerShard;
+		this.framesPerShard = builder.framesPerShard;
+		this.trackIDs = builder.trackIDs == null ? null
+				: Collections.unmodifiableSet(new LinkedHashSet<Integer>(builder.trackIDs));
+		this.rootFilters = Collections.unmodifiableList(new ArrayList<FeatureFilter>(builder.rootFilters));
+		this.firstFrame = builder.firstFrame;
+		this.lastFrame = builder.lastFrame;
+		this.contours = builder.contours;
+		this.pixelSize = builder.pixelSize;
+		this.memoryBudget = builder.memoryBudget;
+	}
+
+	/**
+	 * @return The project name that is written to all files.
+	 */
+	public String getProjectName() {
+		return projectName;
+	}
+
+	/**
+	 * @return The imaging interval in minutes.
+	 */
+	public double getInterval() {
+		return interval;
+	}
+
+	/**
+	 * @return The number of frames of the experiment, 0 if it is derived
+	 *         from the exported spots.
+	 */
+	public int getNFrames() {
+		return nframes;
+	}
+
+	/**
+	 * @return The number of threads that marshall tracks concurrently.
+	 */
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @return The compiled feature mapping.
+	 */
+	public CellFeatureWriter getFeatureWriter() {
+		return featureWriter;
+	}
+
+	/**
+	 * @return Indentation and compression of the written files.
+	 */
+	public OutputFormat getFormat() {
+		return format;
+	}
+
+	/**
+	 * @return Whether unchanged tracks are taken from the cache of the
+	 *         previous export, see {@link FragmentCache}.
+	 */
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * @return Whether the metrics are written to a file, see
+	 *         {@link ExportMetrics}.
+	 */
+	public boolean isWriteMetrics() {
+		return writeMetrics;
+	}
+
+	/**
+	 * @return Whether the binary cell table is written, see
+	 *         {@link CellTable}.
+	 */
+	public boolean isWriteCellTable() {
+		return writeCellTable;
+	}
+
+	/**
+	 * @return Whether the {@code <population>} of each frame summarizes the
+	 *         mapped features, see {@link PopulationStatistics}.
+	 */
+	public boolean isWritePopulationStatistics() {
+		return writePopulationStatistics;
+	}
+
+	/**
+	 * @return Whether the byte offsets of the frames and phylogenies are
+	 *         written to an index, see {@link ExportIndex}.
+	 */
+	public boolean isWriteIndex() {
+		return writeIndex;
+	}
+
+	/**
+	 * @return The number of tracks per phyloXML document, 0 for a single
+	 *         document, see {@link ShardManifest}.
+	 */
+	public int getTracksPerShard() {
+		return tracksPerShard;
+	}
+
+	/**
+	 * @return The range of frames per metaXML document, 0 for a single
+	 *         document, see {@link ShardManifest}.
+	 */
+	public int getFramesPerShard() {
+		return framesPerShard;
+	}
+
+	/**
+	 * @return Whether the output is split into several documents.
+	 */
+	public boolean isSharded() {
+		return tracksPerShard > 0 || framesPerShard > 0;
+	}
+
+	/**
+	 * @return How the outlines of the cells are exported.
+	 */
+	public ContourFormat getContours() {
+		return contours;
+	}
+
+	/**
+	 * @return The size of a pixel in um, used for the pixel coordinates of
+	 *         the outlines.
+	 */
+	public double getPixelSize() {
+		return pixelSize;
+	}
+
+	/**
+	 * @return The memory for the frames of the metaXML in bytes, 0 if they
+	 *         are kept in memory, see {@link FrameSpool}.
+	 */
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @return The IDs of the exported tracks, {@code null} to export all
+	 *         visible tracks.
+	 */
+	public Set<Integer> getTrackIDs() {
+		return trackIDs;
+	}
+
+	/**
+	 * @return The filters that the first Spot of a track has to pass for the
+	 *         track to be exported.
+	 */
+	public List<FeatureFilter> getRootFilters() {
+		return rootFilters;
+	}
+
+	/**
+	 * @return The first exported frame.
+	 */
+	public int getFirstFrame() {
+		return firstFrame;
+	}
+
+	/**
+	 * @return The last exported frame, {@link Integer#MAX_VALUE} if the
+	 *         frames are not limited.
+	 */
+	public int getLastFrame() {
+		return lastFrame;
+	}
+
+	/**
+	 * @return Whether the exported frames are limited.
+	 */
+	public boolean isFrameRangeLimited() {
+		return firstFrame > 0 || lastFrame < Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Parses a comma-separated list of track IDs, e.g. {@code "3, 7, 12"}.
+	 *
+	 * @return The track IDs, {@code null} if the text is empty.
+	 * @throws IllegalArgumentException
+	 *             If the list cannot be parsed
+	 */
+	public static Set<Integer> parseTrackIDs(final String text) {
+		if (text.trim().isEmpty()) {
+			return null;
+		}
+		Set<Integer> ids = new LinkedHashSet<Integer>();
+		for (String id : text.split(",")) {
+			try {
+				ids.add(Integer.valueOf(id.trim()));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid track ID \"" + id.trim() + "\"");
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Parses a range of frames, either {@code "first-last"}, {@code "first-"}
+	 * or a single frame.
+	 *
+	 * @return The first and the last frame, {@code null} if the text is
+	 *         empty.
+	 * @throws IllegalArgumentException
+	 *             If the range cannot be parsed
+	 */
+	public static int[] parseFrameRange(final String text) {
+		String range = text.trim();
+		if (range.isEmpty()) {
+			return null;
+		}
+		int dash = range.indexOf('-');
+		try {
+			if (dash < 0) {
+				int frame = Integer.parseInt(range);
+				return new int[] { frame, frame };
+			}
+			String last = range.substring(dash + 1).trim();
+			return new int[] { Integer.parseInt(range.substring(0, dash).trim()),
+					last.isEmpty() ? Integer.MAX_VALUE : Integer.parseInt(last) };
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid frame range \"" + range + "\"");
+		}
+	}
+
+	/**
+	 * Parses a filter on a Spot feature, e.g. {@code "QUALITY>30"} or
+	 * {@code "RADIUS<2.5"}. As for TrackMate's filters, {@code >} keeps values
+	 * at or above the threshold and {@code <} values at or below it.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the filter cannot be parsed
+	 */
+	public static FeatureFilter parseFeatureFilter(final String text) {
+		int above = text.indexOf('>');
+		int below = text.indexOf('<');
+		int operator = above >= 0 ? above : below;
+		if (operator <= 0 || (above >= 0 && below >= 0)) {
+			throw new IllegalArgumentException("Invalid feature filter \"" + text + "\", expected FEATURE>value or FEATURE<value");
+		}
+		try {
+			double value = Double.parseDouble(text.substring(operator + 1).trim());
+			return new FeatureFilter(text.substring(0, operator).trim(), value, above >= 0);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid threshold in feature filter \"" + text + "\"");
+		}
+	}
+
+	/**
+	 * Creates {@link ExportSettings}. All settings have defaults: project
+	 * "default", an interval of 8 minutes, the number of frames derived from
+	 * the spots, one thread per processor, the default
+	 * {@link FeatureMapping}, indented and uncompressed output, all optional
+	 * files and outlines disabled and all visible tracks and frames exported.
+	 */
+	public static final class Builder {
+		private String projectName = "default";
+		private double interval = 8d;
+		private int nframes = 0;
+		private int numThreads = Runtime.getRuntime().availableProcessors();
+		private FeatureMapping featureMapping = FeatureMapping.createDefault();
+		private OutputFormat format = OutputFormat.PRETTY;
+		private boolean incremental = false;
+		private boolean writeMetrics = false;
+		private boolean writeCellTable = false;
+		private boolean writePopulationStatistics = false;
+		private boolean writeIndex = false;
+		private int tracksPerShard = 0;
+		private int framesPerShard = 0;
+		private Collection<Integer> trackIDs = null;
+		private List<FeatureFilter> rootFilters = new ArrayList<FeatureFilter>();
+		private int firstFrame = 0;
+		private int lastFrame = Integer.MAX_VALUE;
+		private ContourFormat contours = ContourFormat.NONE;
+		private double pixelSize = 1d;
+		private long memoryBudget = 0;
+
+		/**
+		 * @param projectName
+		 *            The project name that is written to all files
+		 */
+		public Builder projectName(final String projectName) {
+			if (projectName == null) {
+				throw new IllegalArgumentException("No project name given");
+			}
+			this.projectName = projectName;
+			return this;
+		}
+
+		/**
+		 * @param interval
+		 *            The imaging interval in minutes
+		 */
+		public Builder interval(final double interval) {
+			this.interval = interval;
+			return this;
+		}
+
+		/**
+		 * @param nframes
+		 *            The number of frames of the experiment, 0 to derive it
+		 *            from the last frame with spots
+		 */
+		public Builder nframes(final int nframes) {
+			if (nframes < 0) {
+				throw new IllegalArgumentException("Negative number of frames");
+			}
+			this.nframes = nframes;
+			return this;
+		}
+
+		/**
+		 * @param numThreads
+		 *            The number of threads that marshall tracks concurrently
+		 */
+		public Builder numThreads(final int numThreads) {
+			if (numThreads < 1) {
+				throw new IllegalArgumentException("At least one thread is required");
+			}
+			this.numThreads = numThreads;
+			return this;
+		}
+
+		/**
+		 * @param featureMapping
+		 *            The spot features that are exported to the cells
+		 */
+		public Builder featureMapping(final FeatureMapping featureMapping) {
+			if (featureMapping == null) {
+				throw new IllegalArgumentException("No feature mapping given");
+			}
+			this.featureMapping = featureMapping;
+			return this;
+		}
+
+		/**
+		 * @param format
+		 *            Indentation and compression of the written files
+		 */
+		public Builder format(final OutputFormat format) {
+			if (format == null) {
+				throw new IllegalArgumentException("No output format given");
+			}
+			this.format = format;
+			return this;
+		}
+
+		/**
+		 * Enables the incremental export. The fragments of all tracks are
+		 * kept in a cache next to the phyloXML, see {@link FragmentCache}.
+		 * When the same model is exported again, only tracks that have
+		 * changed since are marshalled. The output is identical to a full
+		 * export.
+		 *
+		 * @param incremental
+		 *            Whether unchanged tracks are taken from the cache
+		 */
+		public Builder incremental(final boolean incremental) {
+			this.incremental = incremental;
+			return this;
+		}
+
+		/**
+		 * Enables a summary of the duration of each phase, the exported
+		 * tracks, spots and frames and the peak heap usage as JSON next to
+		 * the phyloXML, see {@link ExportMetrics}. The same numbers are always
+		 * logged.
+		 *
+		 * @param writeMetrics
+		 *            Whether the metrics are written to a file
+		 */
+		public Builder writeMetrics(final boolean writeMetrics) {
+			this.writeMetrics = writeMetrics;
+			return this;
+		}
+
+		/**
+		 * Writes the cells additionally to a binary columnar file next to the
+		 * phyloXML, see {@link CellTable}.
+		 *
+		 * @param writeCellTable
+		 *            Whether the cell table is written
+		 */
+		public Builder writeCellTable(final boolean writeCellTable) {
+			this.writeCellTable = writeCellTable;
+			return this;
+		}
+
+		/**
+		 * Adds the number of cells and the mean and standard deviation of
+		 * each mapped feature to the {@code <population>} of each frame, see
+		 * {@link PopulationStatistics}.
+		 *
+		 * @param writePopulationStatistics
+		 *            Whether the statistics are written
+		 */
+		public Builder writePopulationStatistics(final boolean writePopulationStatistics) {
+			this.writePopulationStatistics = writePopulationStatistics;
+			return this;
+		}
+
+		/**
+		 * Writes the byte offsets of all frames and phylogenies to an index
+		 * next to the phyloXML, see {@link ExportIndex}. Compressed exports
+		 * are not indexed.
+		 *
+		 * @param writeIndex
+		 *            Whether the index is written
+		 */
+		public Builder writeIndex(final boolean writeIndex) {
+			this.writeIndex = writeIndex;
+			return this;
+		}
+
+		/**
+		 * Splits the phyloXML into several documents, see
+		 * {@link ShardManifest}.
+		 *
+		 * @param tracksPerShard
+		 *            The number of tracks per phyloXML document, 0 to write
+		 *            all tracks to a single document
+		 */
+		public Builder tracksPerShard(final int tracksPerShard) {
+			if (tracksPerShard < 0) {
+				throw new IllegalArgumentException("Negative number of tracks per shard");
+			}
+			this.tracksPerShard = tracksPerShard;
+			return this;
+		}
+
+		/**
+		 * Splits the metaXML into several documents, see
+		 * {@link ShardManifest}.
+		 *
+		 * @param framesPerShard
+		 *            The range of frames per metaXML document, 0 to write all
+		 *            frames to a single document
+		 */
+		public Builder framesPerShard(final int framesPerShard) {
+			if (framesPerShard < 0) {
+				throw new IllegalArgumentException("Negative number of frames per shard");
+			}
+			this.framesPerShard = framesPerShard;
+			return this;
+		}
+
+		/**
+		 * Exports the outlines of the cells as ImageJ ROIs, see
+		 * {@link ContourEncoder}.
+		 *
+		 * @param contours
+		 *            Whether the outlines are written to the metaXML or to a
+		 *            file of their own
+		 */
+		public Builder contours(final ContourFormat contours) {
+			if (contours == null) {
+				throw new IllegalArgumentException("No contour format given");
+			}
+			this.contours = contours;
+			return this;
+		}
+
+		/**
+		 * @param pixelSize
+		 *            The size of a pixel in um, which converts the spot
+		 *            positions to the pixel coordinates of the outlines
+		 */
+		public Builder pixelSize(final double pixelSize) {
+			if (!(pixelSize > 0d)) {
+				throw new IllegalArgumentException("The pixel size must be positive");
+			}
+			this.pixelSize = pixelSize;
+			return this;
+		}
+
+		/**
+		 * Limits the memory that the frames of the metaXML take while the
+		 * tracks are marshalled. Frames beyond the budget are spilled to
+		 * temporary files next to the metaXML and merged when it is written,
+		 * see {@link FrameSpool}. The output does not change.
+		 *
+		 * @param memoryBudget
+		 *            The memory for the frames in bytes, 0 to keep all frames
+		 *            in memory
+		 */
+		public Builder memoryBudget(final long memoryBudget) {
+			if (memoryBudget < 0) {
+				throw new IllegalArgumentException("Negative memory budget");
+			}
+			this.memoryBudget = memoryBudget;
+			return this;
+		}
+
+		/**
+		 * Exports only the provided tracks. Tracks that are not visible are
+		 * never exported.
+		 *
+		 * @param trackIDs
+		 *            The IDs of the exported tracks, {@code null} to export
+		 *            all visible tracks
+		 */
+		public Builder trackIDs(final Collection<Integer> trackIDs) {
+			this.trackIDs = trackIDs;
+			return this;
+		}
+
+		/**
+		 * Exports only tracks whose first Spot passes the provided filter. A
+		 * Spot without the filtered feature does not pass. Several filters
+		 * have to be passed all.
+		 *
+		 * @param rootFilter
+		 *            A filter on the features of the first Spot of a track
+		 */
+		public Builder rootFilter(final FeatureFilter rootFilter) {
+			if (rootFilter == null || rootFilter.feature == null || rootFilter.value == null) {
+				throw new IllegalArgumentException("Incomplete feature filter given");
+			}
+			this.rootFilters.add(rootFilter);
+			return this;
+		}
+
+		/**
+		 * Exports only the Spots within a range of frames. Lineages are cut at
+		 * the borders of the range: the subtrees below the last frame are
+		 * pruned, and a lineage that has divided before the first frame is
+		 * exported as one phylogeny per cell that enters the range. These
+		 * phylogenies keep the ID of their track.
+		 *
+		 * @param firstFrame
+		 *            The first exported frame
+		 * @param lastFrame
+		 *            The last exported frame, {@link Integer#MAX_VALUE} for
+		 *            all following frames
+		 */
+		public Builder frameRange(final int firstFrame, final int lastFrame) {
+			if (firstFrame < 0 || lastFrame < firstFrame) {
+				throw new IllegalArgumentException("Invalid frame range " + firstFrame + "-" + lastFrame);
+			}
+			this.firstFrame = firstFrame;
+			this.lastFrame = lastFrame;
+			return this;
+		}
+
+		public ExportSettings build() {
+			return new ExportSettings(this);
+		}
+	}
+
+}
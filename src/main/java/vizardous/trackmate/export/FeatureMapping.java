@@ -0,0 +1,216 @@
+package vizardous.trackmate.export;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import vizardous.trackmate.io.FixedPointFormat;
+
+/**
+ * Declares which TrackMate spot features are exported to the {@code <cell>}
+ * elements of the MetaXML, and how. Two kinds of mappings are supported:
+ * <ul>
+ * <li>Scalar cell properties such as {@code <length>} or {@code <area>}</li>
+ * <li>Fluorescence channels with a mean and an optional standard deviation,
+ * which are grouped in {@code <fluorescences>}</li>
+ * </ul>
+ * For each mapping, several feature keys can be given. The first key that is
+ * present for a spot is used, which keeps the export compatible to features
+ * of previous plugin versions. Scalars and fluorescence means are only
+ * exported if they are positive.
+ * <p>
+ * A mapping is compiled with {@link #compile()} once per export.
+ * <p>
+ * Mappings can also be read from a text file with one mapping per line:
+ *
+ * <pre>
+ * # element unit precision feature[,fallback...]
+ * length um 2 LENGTH
+ * # fluorescence channel unit precision mean-feature[,fallback...] [stddev-precision stddev-feature]
+ * fluorescence yfp au 2 YFP_FLUORESCENCE_MEAN,YFP_FLUORESCENCE 4 YFP_FLUORESCENCE_STDDEV
+ * </pre>
+ */
+public class FeatureMapping {
+
+	/** The keyword for fluorescence channels in mapping files */
+	public static final String FLUORESCENCE = "fluorescence";
+
+	private final List<Scalar> scalars = new ArrayList<Scalar>();
+	private final List<Channel> channels = new ArrayList<Channel>();
+
+	/**
+	 * Maps features to a scalar cell property.
+	 *
+	 * @param element
+	 *            Name of the MetaXML element
+	 * @param unit
+	 *            Unit of the value
+	 * @param precision
+	 *            Number of fraction digits
+	 * @param featureKeys
+	 *            The features that provide the value, in order of preference
+	 * @return This mapping.
+	 */
+	public FeatureMapping addScalar(final String element, final String unit, final int precision, final String... featureKeys) {
+		checkPrecision(precision);
+		checkKeys(featureKeys);
+		scalars.add(new Scalar(element, unit, precision, featureKeys));
+		return this;
+	}
+
+	/**
+	 * Maps features to a fluorescence channel.
+	 *
+	 * @param channel
+	 *            Name of the channel
+	 * @param unit
+	 *            Unit of mean and standard deviation
+	 * @param meanPrecision
+	 *            Number of fraction digits of the mean
+	 * @param meanKeys
+	 *            The features that provide the mean, in order of preference
+	 * @param stdDevPrecision
+	 *            Number of fraction digits of the standard deviation
+	 * @param stdDevKey
+	 *            The feature that provides the standard deviation, can be
+	 *            {@code null}
+	 * @return This mapping.
+	 */
+	public FeatureMapping addChannel(final String channel, final String unit, final int meanPrecision, final String[] meanKeys, final int stdDevPrecision, final String stdDevKey) {
+		checkPrecision(meanPrecision);
+		checkPrecision(stdDevPrecision);
+		checkKeys(meanKeys);
+		channels.add(new Channel(channel, unit, meanPrecision, meanKeys, stdDevPrecision, stdDevKey));
+		return this;
+	}
+
+	public List<Scalar> getScalars() {
+		return Collections.unmodifiableList(scalars);
+	}
+
+	public List<Channel> getChannels() {
+		return Collections.unmodifiableList(channels);
+	}
+
+	/**
+	 * @return A {@link CellFeatureWriter} for this mapping.
+	 */
+	public CellFeatureWriter compile() {
+		return new CellFeatureWriter(this);
+	}
+
+	/**
+	 * @return The mapping of previous plugin versions: length, area and the
+	 *         YFP and Crimson channels.
+	 */
+	public static FeatureMapping createDefault() {
+		FeatureMapping mapping = new FeatureMapping();
+		mapping.addScalar("length", "um", 2, LENGTH);
+		mapping.addScalar("area", "um^2", 2, AREA);
+		// TODO Export (approximated) volume
+
+		// Keep it compatible to previous plugin versions where the features were called YFP_FLUORESCENCE and CRIMSON_FLUORESCENCE
+		mapping.addChannel("yfp", "au", 2, new String[] { YFP_FLUORESCENCE_MEAN, "YFP_FLUORESCENCE" }, 4, YFP_FLUORESCENCE_STDDEV);
+		mapping.addChannel("crimson", "au", 2, new String[] { CRIMSON_FLUORESCENCE_MEAN, "CRIMSON_FLUORESCENCE" }, 4, CRIMSON_FLUORESCENCE_STDDEV);
+		return mapping;
+	}
+
+	/**
+	 * Reads a mapping file, see the class documentation for its format.
+	 *
+	 * @param file
+	 *            The mapping file
+	 * @return The mapping declared in the file.
+	 */
+	public static FeatureMapping read(final File file) throws IOException {
+		FeatureMapping mapping = new FeatureMapping();
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+
+				String[] tokens = line.split("\\s+");
+				try {
+					if (tokens[0].equals(FLUORESCENCE) && (tokens.length == 5 || tokens.length == 7)) {
+						boolean hasStdDev = tokens.length == 7;
+						mapping.addChannel(tokens[1], tokens[2], Integer.parseInt(tokens[3]), tokens[4].split(","),
+								hasStdDev ? Integer.parseInt(tokens[5]) : 0, hasStdDev ? tokens[6] : null);
+					} else if (!tokens[0].equals(FLUORESCENCE) && tokens.length == 4) {
+						mapping.addScalar(tokens[0], tokens[1], Integer.parseInt(tokens[2]), tokens[3].split(","));
+					} else {
+						throw new IllegalArgumentException("Unexpected number of columns");
+					}
+				} catch (IllegalArgumentException e) {
+					throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		return mapping;
+	}
+
+	private static void checkPrecision(final int precision) {
+		if (precision < 0 || precision > FixedPointFormat.MAX_PRECISION) {
+			throw new IllegalArgumentException("Unsupported precision: " + precision);
+		}
+	}
+
+	private static void checkKeys(final String[] keys) {
+		if (keys == null || keys.length == 0) {
+			throw new IllegalArgumentException("No feature given");
+		}
+	}
+
+	/**
+	 * A scalar cell property.
+	 */
+	public static class Scalar {
+		public final String element;
+		public final String unit;
+		public final int precision;
+		public final String[] featureKeys;
+
+		Scalar(final String element, final String unit, final int precision, final String[] featureKeys) {
+			this.element = element;
+			this.unit = unit;
+			this.precision = precision;
+			this.featureKeys = featureKeys.clone();
+		}
+	}
+
+	/**
+	 * A fluorescence channel.
+	 */
+	public static class Channel {
+		public final String channel;
+		public final String unit;
+		public final int meanPrecision;
+		public final String[] meanKeys;
+		public final int stdDevPrecision;
+		public final String stdDevKey;
+
+		Channel(final String channel, final String unit, final int meanPrecision, final String[] meanKeys, final int stdDevPrecision, final String stdDevKey) {
+			this.channel = channel;
+			this.unit = unit;
+			this.meanPrecision = meanPrecision;
+			this.meanKeys = meanKeys.clone();
+			this.stdDevPrecision = stdDevPrecision;
+			this.stdDevKey = stdDevKey;
+		}
+	}
+
+}
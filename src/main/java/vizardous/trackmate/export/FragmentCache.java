@@ -0,0 +1,417 @@
+package vizardous.trackmate.export;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sidecar of an incremental export. For every exported track, the cache holds
+ * a fingerprint of the track and its serialized {@code <phylogeny>} and
+ * {@code <cell>} elements. A track whose fingerprint is unchanged is not
+ * marshalled again; its fragments are copied from the cache instead.
+ * <p>
+ * Records are keyed by the ID of the first Spot of their phylogeny, since a
+ * track that is cut by the frame range of the export yields several
+ * phylogenies, see {@link ExportSettings#getFirstFrame()}.
+ * <p>
+ * Cell IDs are numbered across all tracks, so editing a single track shifts
+ * the IDs of all tracks that follow it. Fragments are therefore stored with
+ * their cell IDs cut out and the IDs are inserted again, relative to the
+ * first ID of the track, when a fragment is reused.
+ * <p>
+ * File layout (big-endian, as written by {@link DataOutputStream}):
+ *
+ * <pre>
+ * header:  int magic, int version, long settings
+ * records: one {@link TrackFragments} per track
+ * index:   int count, count * (int rootID, long fingerprint, long offset, int length)
+ * trailer: long offset of the index
+ * </pre>
+ *
+ * Only the index is read up front, records are read on demand and may be
+ * read concurrently.
+ */
+final class FragmentCache {
+
+	private static final int MAGIC = 0x4A4E4746; // "JNGF"
+	private static final int VERSION = 3;
+	private static final String EXTENSION = ".fragments";
+	private static final int HEADER_SIZE = 16;
+	private static final int ENTRY_SIZE = 24;
+	private static final int TRAILER_SIZE = 8;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final Map<Integer, Entry> index;
+
+	private FragmentCache(final RandomAccessFile file, final Map<Integer, Entry> index) {
+		this.file = file;
+		this.channel = file.getChannel();
+		this.index = index;
+	}
+
+	/**
+	 * Derives the cache file from the phyloXML file.
+	 */
+	static File getCacheFile(final File filePhylo) {
+		return new File(LineageExporter.getBasePath(filePhylo) + EXTENSION);
+	}
+
+	/**
+	 * Opens an existing cache.
+	 *
+	 * @param cacheFile
+	 *            The cache file
+	 * @param settings
+	 *            Hash of all export settings that affect the fragments
+	 * @return The cache, or {@code null} if there is none, if it has been
+	 *         written with other settings or if its index is inconsistent.
+	 */
+	static FragmentCache open(final File cacheFile, final long settings) throws IOException {
+		if (!cacheFile.isFile()) {
+			return null;
+		}
+
+		RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+		boolean success = false;
+		try {
+			long length = file.length();
+			if (length < HEADER_SIZE + 4 + TRAILER_SIZE || file.readInt() != MAGIC || file.readInt() != VERSION || file.readLong() != settings) {
+				return null;
+			}
+
+			// A cache that has been damaged or written partially is stale
+			file.seek(length - TRAILER_SIZE);
+			long indexOffset = file.readLong();
+			if (indexOffset < HEADER_SIZE || indexOffset > length - TRAILER_SIZE - 4) {
+				return null;
+			}
+			file.seek(indexOffset);
+			int count = file.readInt();
+			if (count < 0 || (long) count * ENTRY_SIZE != length - TRAILER_SIZE - 4 - indexOffset) {
+				return null;
+			}
+
+			Map<Integer, Entry> index = new HashMap<Integer, Entry>(2 * count);
+			for (int i = 0; i < count; i++) {
+				int rootID = file.readInt();
+				Entry entry = new Entry(file.readLong(), file.readLong(), file.readInt());
+				if (entry.offset < HEADER_SIZE || entry.length < 0 || entry.offset + entry.length > indexOffset) {
+					return null;
+				}
+				index.put(rootID, entry);
+			}
+
+			success = true;
+			return new FragmentCache(file, index);
+		} catch (EOFException e) {
+			// Truncated cache, export all tracks again
+			return null;
+		} finally {
+			if (!success) {
+				file.close();
+			}
+		}
+	}
+
+	/**
+	 * @param rootID
+	 *            The ID of the first Spot of the phylogeny
+	 * @return Whether the phylogeny is cached.
+	 */
+	boolean contains(final int rootID) {
+		return index.containsKey(rootID);
+	}
+
+	/**
+	 * @param rootID
+	 *            The ID of the first Spot of a cached phylogeny
+	 * @return The fingerprint that the phylogeny has been cached with.
+	 */
+	long getFingerprint(final int rootID) {
+		return index.get(rootID).fingerprint;
+	}
+
+	/**
+	 * Reads the fragments of a track if its fingerprint is unchanged.
+	 *
+	 * @param rootID
+	 *            The ID of the first Spot of the phylogeny
+	 * @param fingerprint
+	 *            The current fingerprint of the track
+	 * @return The cached fragments, or {@code null} if the track is not
+	 *         cached or has changed.
+	 */
+	TrackFragments read(final int rootID, final long fingerprint) throws IOException {
+		Entry entry = index.get(rootID);
+		if (entry == null || entry.fingerprint != fingerprint) {
+			return null;
+		}
+
+		// Positional reads do not move the file pointer and are thread-safe
+		ByteBuffer bytes = ByteBuffer.allocate(entry.length);
+		while (bytes.hasRemaining()) {
+			if (channel.read(bytes, entry.offset + bytes.position()) < 0) {
+				throw new EOFException("Truncated cache record of phylogeny " + rootID);
+			}
+		}
+
+		return TrackFragments.read(fingerprint, new DataInputStream(new ByteArrayInputStream(bytes.array())));
+	}
+
+	void close() throws IOException {
+		file.close();
+	}
+
+	/**
+	 * Combines a value into a running 64-bit FNV-1a hash.
+	 */
+	static long hash(long hash, final long value) {
+		for (int i = 0; i < 8; i++) {
+			hash ^= (value >>> (8 * i)) & 0xff;
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	static long hash(final long hash, final double value) {
+		return hash(hash, Double.doubleToLongBits(value));
+	}
+
+	static long hash(long hash, final String value) {
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+	static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/**
+	 * Location of the record of a track.
+	 */
+	private static final class Entry {
+		final long fingerprint;
+		final long offset;
+		final int length;
+
+		Entry(final long fingerprint, final long offset, final int length) {
+			this.fingerprint = fingerprint;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Writes a new cache. Records are added in track order and the index is
+	 * appended by {@link #close()}.
+	 */
+	static final class Writer {
+		private final DataOutputStream out;
+		private final Map<Integer, Entry> index = new LinkedHashMap<Integer, Entry>();
+		private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+		private long offset;
+
+		Writer(final File file, final long settings) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(settings);
+			offset = 16;
+		}
+
+		void add(final int rootID, final TrackFragments fragments) throws IOException {
+			record.reset();
+			fragments.write(new DataOutputStream(record));
+			record.writeTo(out);
+
+			index.put(rootID, new Entry(fragments.fingerprint, offset, record.size()));
+			offset += record.size();
+		}
+
+		/**
+		 * Writes the index and closes the file.
+		 */
+		void close() throws IOException {
+			try {
+				out.writeInt(index.size());
+				for (Map.Entry<Integer, Entry> entry : index.entrySet()) {
+					out.writeInt(entry.getKey());
+					out.writeLong(entry.getValue().fingerprint);
+					out.writeLong(entry.getValue().offset);
+					out.writeInt(entry.getValue().length);
+				}
+				out.writeLong(offset);
+			} finally {
+				out.close();
+			}
+		}
+
+		/**
+		 * Closes the file without an index, it is discarded anyway.
+		 */
+		void abort() {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// Ignore, the export has already failed
+			}
+		}
+	}
+
+	/**
+	 * The cached output of a single track: its phylogeny and the cells it
+	 * contributes to each frame.
+	 */
+	static final class TrackFragments {
+		final long fingerprint;
+		final Fragment phylogeny;
+		final int[] frames;
+		final Fragment[] cells;
+
+		TrackFragments(final long fingerprint, final Fragment phylogeny, final int[] frames, final Fragment[] cells) {
+			this.fingerprint = fingerprint;
+			this.phylogeny = phylogeny;
+			this.frames = frames;
+			this.cells = cells;
+		}
+
+		void write(final DataOutputStream out) throws IOException {
+			phylogeny.write(out);
+			out.writeInt(frames.length);
+			for (int i = 0; i < frames.length; i++) {
+				out.writeInt(frames[i]);
+				cells[i].write(out);
+			}
+		}
+
+		static TrackFragments read(final long fingerprint, final DataInputStream in) throws IOException {
+			Fragment phylogeny = Fragment.read(in);
+			int count = in.readInt();
+			int[] frames = new int[count];
+			Fragment[] cells = new Fragment[count];
+			for (int i = 0; i < count; i++) {
+				frames[i] = in.readInt();
+				cells[i] = Fragment.read(in);
+			}
+			return new TrackFragments(fingerprint, phylogeny, frames, cells);
+		}
+	}
+
+	/**
+	 * Serialized XML with the cell IDs cut out. Each cut is stored as its
+	 * position in the remaining text and the ID relative to the first cell of
+	 * the track.
+	 */
+	static final class Fragment {
+		private final String text;
+		private final int[] positions;
+		private final int[] localIDs;
+
+		private Fragment(final String text, final int[] positions, final int[] localIDs) {
+			this.text = text;
+			this.positions = positions;
+			this.localIDs = localIDs;
+		}
+
+		/**
+		 * Cuts the IDs out of serialized XML.
+		 *
+		 * @param xml
+		 *            The serialized XML
+		 * @param ids
+		 *            The positions of the IDs in the XML
+		 * @param firstID
+		 *            The ID of the first cell of the track
+		 */
+		static Fragment cut(final CharSequence xml, final IdPositions ids, final int firstID) {
+			StringBuilder text = new StringBuilder(xml.length());
+			int[] positions = new int[ids.size];
+			int[] localIDs = new int[ids.size];
+
+			int start = 0;
+			for (int i = 0; i < ids.size; i++) {
+				int position = ids.positions[i];
+				text.append(xml, start, position);
+				positions[i] = text.length();
+				localIDs[i] = ids.ids[i] - firstID;
+				start = position + String.valueOf(ids.ids[i]).length();
+			}
+			text.append(xml, start, xml.length());
+
+			return new Fragment(text.toString(), positions, localIDs);
+		}
+
+		/**
+		 * Appends the XML with the IDs of a track that starts at the provided
+		 * ID.
+		 */
+		void appendTo(final StringBuilder out, final int firstID) {
+			int start = 0;
+			for (int i = 0; i < positions.length; i++) {
+				out.append(text, start, positions[i]).append(firstID + localIDs[i]);
+				start = positions[i];
+			}
+			out.append(text, start, text.length());
+		}
+
+		void write(final DataOutputStream out) throws IOException {
+			byte[] bytes = text.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+			out.writeInt(positions.length);
+			for (int i = 0; i < positions.length; i++) {
+				out.writeInt(positions[i]);
+				out.writeInt(localIDs[i]);
+			}
+		}
+
+		static Fragment read(final DataInputStream in) throws IOException {
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			int count = in.readInt();
+			int[] positions = new int[count];
+			int[] localIDs = new int[count];
+			for (int i = 0; i < count; i++) {
+				positions[i] = in.readInt();
+				localIDs[i] = in.readInt();
+			}
+			return new Fragment(new String(bytes, "UTF-8"), positions, localIDs);
+		}
+	}
+
+	/**
+	 * Records where cell IDs have been written to a buffer.
+	 */
+	static final class IdPositions {
+		private int[] positions = new int[16];
+		private int[] ids = new int[16];
+		private int size;
+
+		void add(final int position, final int id) {
+			if (size == positions.length) {
+				positions = Arrays.copyOf(positions, 2 * size);
+				ids = Arrays.copyOf(ids, 2 * size);
+			}
+			positions[size] = position;
+			ids[size] = id;
+			size++;
+		}
+	}
+
+}
@@ -0,0 +1,106 @@
+package vizardous.trackmate.export;
+
+import java.util.Arrays;
+
+import vizardous.trackmate.export.ExportRun.FrameBuffer;
+
+/**
+ * The {@link FrameBuffer}s of the metaXML, indexed by frame number. Frames are
+ * small and dense integers, hence the buffers are kept in an array that
+ * covers the frames seen so far instead of a map with boxed keys.
+ * <p>
+ * The order in which the frames have been added is kept, it is the order of
+ * the frames in the metaXML.
+ */
+final class FrameBuckets {
+
+	private static final FrameBuffer[] EMPTY = new FrameBuffer[0];
+
+	/** {@code buffers[i]} belongs to frame {@code offset + i} */
+	private FrameBuffer[] buffers;
+	private int offset;
+	/** The frames in the order in which they have been added */
+	private int[] order = new int[4];
+	private int size = 0;
+
+	/**
+	 * Creates buckets that grow with the added frames, e.g. for the frames
+	 * of a single track.
+	 */
+	FrameBuckets() {
+		this.buffers = EMPTY;
+		this.offset = 0;
+	}
+
+	/**
+	 * Creates buckets for the frames {@code 0} to {@code nFrames - 1}. Other
+	 * frames can still be added.
+	 *
+	 * @param nFrames
+	 *            The expected number of frames
+	 */
+	FrameBuckets(final int nFrames) {
+		this.buffers = new FrameBuffer[nFrames];
+		this.offset = 0;
+	}
+
+	/**
+	 * @return The buffer of the provided frame, {@code null} if the frame has
+	 *         not been added.
+	 */
+	FrameBuffer get(final int frame) {
+		int i = frame - offset;
+		return i >= 0 && i < buffers.length ? buffers[i] : null;
+	}
+
+	/**
+	 * Adds a frame that has not been added before.
+	 */
+	void put(final int frame, final FrameBuffer buffer) {
+		ensureCapacity(frame);
+		buffers[frame - offset] = buffer;
+
+		if (size == order.length) {
+			order = Arrays.copyOf(order, 2 * size);
+		}
+		order[size++] = frame;
+	}
+
+	/**
+	 * @return The number of added frames.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return The {@code i}-th added frame.
+	 */
+	int frame(final int i) {
+		return order[i];
+	}
+
+	/**
+	 * @return The buffer of the {@code i}-th added frame.
+	 */
+	FrameBuffer buffer(final int i) {
+		return buffers[order[i] - offset];
+	}
+
+	private void ensureCapacity(final int frame) {
+		if (size == 0 && buffers.length == 0) {
+			buffers = new FrameBuffer[4];
+			offset = frame;
+		} else if (frame < offset) {
+			// Grow towards lower frames, but not below frame 0 unless required
+			int newOffset = Math.min(frame, Math.max(0, offset - buffers.length));
+			FrameBuffer[] tmp = new FrameBuffer[buffers.length + offset - newOffset];
+			System.arraycopy(buffers, 0, tmp, offset - newOffset, buffers.length);
+			buffers = tmp;
+			offset = newOffset;
+		} else if (frame - offset >= buffers.length) {
+			buffers = Arrays.copyOf(buffers, Math.max(frame - offset + 1, 2 * buffers.length));
+		}
+	}
+
+}
@@ -0,0 +1,357 @@
+package vizardous.trackmate.export;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import vizardous.trackmate.export.ExportRun.FrameBuffer;
+import vizardous.trackmate.io.XmlWriter;
+
+/**
+ * Bounds the memory that the frames of the metaXML take while the tracks are
+ * merged. Once the buffered frames exceed the memory budget, their content
+ * is spilled to a temporary run file and the buffers are cleared; the
+ * {@link XmlWriter}s of the frames are kept, so that later cells are appended
+ * as before.
+ * <p>
+ * A run holds one record per frame, ordered by metaXML shard and then by the
+ * order of the frames in the metaXML:
+ *
+ * <pre>
+ * record: int frame, int length, length bytes of UTF-8 XML
+ * </pre>
+ *
+ * When the metaXML is written, the runs are merged by frame: the content of
+ * a frame is the concatenation of its records in the order of the runs,
+ * followed by the rest of its buffer. Hence the output is identical to an
+ * export that keeps all frames in memory.
+ * <p>
+ * The number of runs is limited by {@link #MAX_RUNS}: the spill that reaches
+ * the limit merges the previous runs and the buffers into a single run. The
+ * read buffers of the runs share the budget, see {@link #getReadBufferSize}.
+ * <p>
+ * The budget covers the frames, including their headers. The tracks that are
+ * marshalled but not merged yet are not counted.
+ */
+final class FrameSpool {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Java strings take two bytes per character */
+	private static final int BYTES_PER_CHAR = 2;
+
+	/** The number of runs at which they are merged into a single run */
+	static final int MAX_RUNS = 16;
+
+	private static final int MIN_READ_BUFFER = 1 << 12;
+	private static final int MAX_READ_BUFFER = 1 << 16;
+
+	private final long budget;
+	private final File folder;
+	private final String prefix;
+	private final int framesPerShard;
+	private final int readers;
+	private final List<Run> runs = new ArrayList<Run>();
+
+	private long bufferedChars = 0;
+	private long spilledBytes = 0;
+
+	/**
+	 * @param budget
+	 *            The memory for the buffered frames in bytes, 0 for no limit
+	 * @param fileMeta
+	 *            The destination of the metaXML, the runs are written to its
+	 *            folder
+	 * @param framesPerShard
+	 *            The range of frames per metaXML document, 0 for a single
+	 *            document
+	 * @param readers
+	 *            The maximum number of documents that are written
+	 *            concurrently, each of which reads all runs
+	 */
+	FrameSpool(final long budget, final File fileMeta, final int framesPerShard, final int readers) {
+		this.budget = budget;
+		this.folder = fileMeta.getAbsoluteFile().getParentFile();
+		this.prefix = "." + fileMeta.getName() + ".";
+		this.framesPerShard = framesPerShard;
+		this.readers = Math.max(1, readers);
+	}
+
+	/**
+	 * Accounts for content that has been appended to the frames and spills
+	 * them if the budget is exceeded.
+	 *
+	 * @param frames
+	 *            All frames of the metaXML
+	 * @param chars
+	 *            The number of appended characters
+	 */
+	void added(final FrameBuckets frames, final int chars) throws IOException {
+		bufferedChars += chars;
+		if (budget > 0 && bufferedChars * BYTES_PER_CHAR > budget) {
+			spill(frames);
+		}
+	}
+
+	/**
+	 * Writes the content of all frames to a new run and clears the buffers.
+	 * If the new run reaches the limit of runs, the previous runs are merged
+	 * into it and deleted.
+	 */
+	private void spill(final FrameBuckets frames) throws IOException {
+		Integer[] order = new Integer[frames.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		if (framesPerShard > 0) {
+			// The order of the frames is kept within each shard
+			final FrameBuckets sorted = frames;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int cmp = compareInts(shardOf(sorted.frame(a)), shardOf(sorted.frame(b)));
+					return cmp != 0 ? cmp : compareInts(a, b);
+				}
+			});
+		}
+
+		List<Run> merged = runs.size() + 1 >= MAX_RUNS ? new ArrayList<Run>(runs) : new ArrayList<Run>();
+		Run run = new Run(File.createTempFile(prefix, ".run", folder));
+		runs.add(run);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run.file), 1 << 16));
+		Merger previous = null;
+		int shard = -1;
+		long position = 0;
+		try {
+			for (Integer i : order) {
+				int frameNumber = frames.frame(i);
+				if (!merged.isEmpty() && shardOf(frameNumber) != shard) {
+					// The records of a shard are consecutive
+					if (previous != null) {
+						previous.close();
+					}
+					shard = shardOf(frameNumber);
+					previous = new Merger(merged, shard, getReadBufferSize(merged.size(), 1));
+				}
+
+				// Every spilled frame still has a buffer, which may be empty
+				byte[] spilled = previous != null ? previous.read(frameNumber) : null;
+				FrameBuffer frame = frames.buffer(i);
+				if (frame.buffer.length() == 0 && spilled == null) {
+					continue;
+				}
+
+				run.addRecord(shardOf(frameNumber), position);
+				byte[] bytes = frame.buffer.toString().getBytes(UTF8);
+				int length = bytes.length + (spilled != null ? spilled.length : 0);
+				out.writeInt(frameNumber);
+				out.writeInt(length);
+				if (spilled != null) {
+					out.write(spilled);
+				}
+				out.write(bytes);
+				position += 8 + length;
+
+				frame.buffer.setLength(0);
+				frame.buffer.trimToSize();
+			}
+		} finally {
+			try {
+				if (previous != null) {
+					previous.close();
+				}
+			} finally {
+				out.close();
+			}
+		}
+		spilledBytes += run.file.length();
+		bufferedChars = 0;
+
+		for (Run mergedRun : merged) {
+			runs.remove(mergedRun);
+			mergedRun.file.delete();
+		}
+	}
+
+	/**
+	 * Divides the budget among the read buffers of the runs. The buffer of a
+	 * run is at least 4 KiB, though, and at most 64 KiB.
+	 *
+	 * @param inputs
+	 *            The number of runs that are read by a reader
+	 * @param concurrentReaders
+	 *            The number of concurrent readers
+	 * @return The size of each read buffer in bytes.
+	 */
+	private int getReadBufferSize(final int inputs, final int concurrentReaders) {
+		long size = budget / ((long) inputs * concurrentReaders);
+		return (int) Math.max(MIN_READ_BUFFER, Math.min(MAX_READ_BUFFER, size));
+	}
+
+	private int shardOf(final int frame) {
+		return framesPerShard > 0 ? frame / framesPerShard : 0;
+	}
+
+	private static int compareInts(final int a, final int b) {
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	/**
+	 * @return The number of runs.
+	 */
+	int getRuns() {
+		return runs.size();
+	}
+
+	/**
+	 * @return The number of bytes that have been spilled, including the runs
+	 *         that have been merged.
+	 */
+	long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	/**
+	 * Opens the records of a shard in all runs.
+	 *
+	 * @param frame
+	 *            Any frame of the shard
+	 * @return The merging reader, {@code null} if nothing has been spilled.
+	 */
+	Merger open(final int frame) throws IOException {
+		return runs.isEmpty() ? null : new Merger(runs, shardOf(frame), getReadBufferSize(runs.size(), readers));
+	}
+
+	/**
+	 * Deletes all runs.
+	 */
+	void delete() {
+		for (Run run : runs) {
+			run.file.delete();
+		}
+		runs.clear();
+	}
+
+	/**
+	 * A run file and the position and number of the records of each shard.
+	 */
+	private static final class Run {
+		final File file;
+		final Map<Integer, long[]> sections = new HashMap<Integer, long[]>();
+
+		Run(final File file) {
+			this.file = file;
+		}
+
+		void addRecord(final int shard, final long position) {
+			long[] section = sections.get(shard);
+			if (section == null) {
+				sections.put(shard, new long[] { position, 1 });
+			} else {
+				section[1]++;
+			}
+		}
+	}
+
+	/**
+	 * Merges the records of a shard from a list of runs. The frames have to
+	 * be requested in the order of the metaXML.
+	 */
+	static final class Merger {
+		private final DataInputStream[] inputs;
+		private final long[] remaining;
+		/** The frame of the next record of each run, -1 if there is none */
+		private final int[] next;
+
+		Merger(final List<Run> runs, final int shard, final int bufferSize) throws IOException {
+			inputs = new DataInputStream[runs.size()];
+			remaining = new long[runs.size()];
+			next = new int[runs.size()];
+			try {
+				for (int r = 0; r < runs.size(); r++) {
+					long[] section = runs.get(r).sections.get(shard);
+					next[r] = -1;
+					if (section == null) {
+						continue;
+					}
+					FileInputStream file = new FileInputStream(runs.get(r).file);
+					file.getChannel().position(section[0]);
+					inputs[r] = new DataInputStream(new BufferedInputStream(file, bufferSize));
+					remaining[r] = section[1];
+					advance(r);
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		private void advance(final int r) throws IOException {
+			next[r] = remaining[r]-- > 0 ? inputs[r].readInt() : -1;
+		}
+
+		/**
+		 * Appends the spilled content of a frame.
+		 *
+		 * @param frame
+		 *            The next frame of the shard
+		 * @param out
+		 *            The writer of the metaXML
+		 */
+		void copy(final int frame, final XmlWriter out) throws IOException {
+			byte[] bytes = read(frame);
+			if (bytes != null) {
+				out.fragment(new String(bytes, UTF8));
+			}
+		}
+
+		/**
+		 * Reads the spilled content of a frame. The records are split at
+		 * characters, hence their concatenation is valid UTF-8.
+		 *
+		 * @param frame
+		 *            The next frame of the shard
+		 * @return The concatenated records of the frame, {@code null} if it
+		 *         has none.
+		 */
+		byte[] read(final int frame) throws IOException {
+			byte[] content = null;
+			for (int r = 0; r < inputs.length; r++) {
+				if (next[r] == frame) {
+					int length = inputs[r].readInt();
+					int offset = 0;
+					if (content == null) {
+						content = new byte[length];
+					} else {
+						offset = content.length;
+						content = Arrays.copyOf(content, offset + length);
+					}
+					inputs[r].readFully(content, offset, length);
+					advance(r);
+				}
+			}
+			return content;
+		}
+
+		void close() throws IOException {
+			for (DataInputStream input : inputs) {
+				if (input != null) {
+					input.close();
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package vizardous.trackmate.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Set;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import vizardous.trackmate.io.OutputFormat;
+
+/**
+ * Exports a TrackMate {@link Model} to a pair of PhyloXML and MetaXML without
+ * any user interaction. It is used by the TrackMate action as well as by the
+ * headless {@link BatchExport}.
+ * <p>
+ * An exporter only holds its immutable {@link ExportSettings}. The state of
+ * an export is confined to the call of {@link #export(Model, File, Logger)},
+ * hence an exporter can be used many times and by several threads at once,
+ * as long as they export to different files.
+ */
+public final class LineageExporter {
+	
+	private final ExportSettings settings;
+	
+	/*
+	 * CONSTRUCTOR
+	 */
+	/**
+	 * @param settings
+	 *            The settings of all exports
+	 */
+	public LineageExporter(final ExportSettings settings) {
+		this.settings = settings;
+	}
+	
+	public ExportSettings getSettings() {
+		return settings;
+	}
+	
+	/**
+	 * Exports the visible tracks of the provided {@link Model}. The metaXML is
+	 * written next to the phyloXML, see {@link #getMetaFile(File)}.
+	 * <p>
+	 * The export is canceled by interrupting the calling thread. It then
+	 * throws an {@link InterruptedIOException} and leaves previously exported
+	 * files untouched.
+	 * 
+	 * @param model
+	 *            The TrackMate {@link Model} that will be exported, it must
+	 *            not be edited during the export
+	 * @param filePhylo
+	 *            The destination of the phyloXML
+	 * @param logger
+	 *            The logger that reports the progress of the export
+	 */
+	public void export(final Model model, final File filePhylo, final Logger logger) throws IOException {
+		new ExportRun(settings, logger).export(model, filePhylo);
+	}
+	
+	/**
+	 * Exports the visible tracks of a view of a {@link Model} like
+	 * {@link #export(Model, File, Logger)}. If the export is incremental, the
+	 * tracks that have been exported to the same file before and that are not
+	 * listed as changed are taken from the cache without being traversed.
+	 * This is used by the {@link LiveExport}, which exports a
+	 * {@link ModelSnapshot} and knows the changed tracks from the events of
+	 * the model.
+	 * 
+	 * @param changedTracks
+	 *            The IDs of the tracks that may have changed since the
+	 *            previous export to the same file, {@code null} if any track
+	 *            may have changed
+	 */
+	void export(final ModelView model, final File filePhylo, final Logger logger, final Set<Integer> changedTracks) throws IOException {
+		new ExportRun(settings, logger).export(model, filePhylo, changedTracks);
+	}
+	
+	/**
+	 * Exports the visible tracks of the provided {@link Model} without
+	 * reporting the progress.
+	 * 
+	 * @see #export(Model, File, Logger)
+	 */
+	public void export(final Model model, final File filePhylo) throws IOException {
+		export(model, filePhylo, Logger.VOID_LOGGER);
+	}
+	
+	/**
+	 * Derives the meta data file from the phyloXML file. A gzip extension of
+	 * the phyloXML is kept.
+	 */
+	public static File getMetaFile(final File filePhylo) {
+		String compression = filePhylo.getName().endsWith(OutputFormat.GZIP_EXTENSION) ? OutputFormat.GZIP_EXTENSION : "";
+		return new File(getBasePath(filePhylo) + "_meta.xml" + compression);
+	}
+	
+	/**
+	 * Strips the extension, including a gzip extension, from the phyloXML
+	 * file. All other files of an export are named after this path.
+	 */
+	static String getBasePath(final File filePhylo) {
+		String phyloPath = filePhylo.getAbsolutePath();
+		if (phyloPath.endsWith(OutputFormat.GZIP_EXTENSION)) {
+			phyloPath = phyloPath.substring(0, phyloPath.length() - OutputFormat.GZIP_EXTENSION.length());
+		}
+		return phyloPath.substring(0, phyloPath.lastIndexOf("."));
+	}
+	
+}
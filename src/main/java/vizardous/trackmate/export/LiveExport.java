@@ -0,0 +1,273 @@
+package vizardous.trackmate.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.ModelChangeListener;
+
+/**
+ * Keeps an export up to date while the {@link Model} grows, e.g. while an
+ * experiment is tracked. The export listens to the changes of the model and
+ * re-exports it once the changes of a delay have been collected, so that a
+ * burst of changes, like the spots of a new frame, results in a single
+ * export.
+ * <p>
+ * The model is exported on a background thread while it may be edited.
+ * Hence the export reads a {@link ModelSnapshot}: the Spots and edges of
+ * every event are copied while the event is handled, i.e. on the thread that
+ * edits the model, and are applied to the snapshot before the next update.
+ * Filtering the Spots only copies their visibility. Only recomputations of
+ * the whole model, e.g. a new detection or tracking, are copied as a whole.
+ * <p>
+ * The export is incremental: the changed tracks are read from the events and
+ * only these are traversed, all other tracks are taken from the cache of the
+ * previous export, see {@link FragmentCache}. Hence the cost of an update is
+ * proportional to the changed tracks plus copying the cached fragments.
+ * After a removal or a copy of the whole model, the fingerprints of all
+ * tracks are checked.
+ * <p>
+ * The files are replaced as a whole by every update, so that a viewer never
+ * reads a half-written export. An update that fails to write the files is
+ * repeated with its changes.
+ */
+public final class LiveExport implements ModelChangeListener {
+
+	/** The minimum delay in milliseconds before a failed update is repeated */
+	private static final long RETRY_DELAY = 1000;
+
+	private final LineageExporter exporter;
+	private final Model model;
+	private final File filePhylo;
+	private final Logger logger;
+	private final long delay;
+	private final ScheduledExecutorService executor;
+
+	/** The snapshot that is exported, confined to the thread of the updates */
+	private ModelSnapshot snapshot;
+
+	/** A copy of the whole model that replaces the snapshot, guarded by this */
+	private ModelSnapshot copiedModel;
+	/** The changes that are applied to the snapshot, guarded by this */
+	private List<ModelSnapshot.Changes> pendingChanges = new ArrayList<ModelSnapshot.Changes>();
+	/** Whether the model has changed since the last update, guarded by this */
+	private boolean changed = true;
+	/** Whether any track may have changed, guarded by this */
+	private boolean allTracksChanged = true;
+	/** The tracks that have changed since the last update, guarded by this */
+	private Set<Integer> changedTracks = new HashSet<Integer>();
+	/** Whether an update is scheduled and has not started yet, guarded by this */
+	private boolean scheduled = false;
+
+	/*
+	 * CONSTRUCTOR
+	 */
+	/**
+	 * @param exporter
+	 *            The exporter of the updates, its settings must be
+	 *            incremental
+	 * @param model
+	 *            The TrackMate {@link Model} that will be exported
+	 * @param filePhylo
+	 *            The destination of the phyloXML
+	 * @param logger
+	 *            The logger that reports the updates
+	 * @param delay
+	 *            The time in milliseconds during which changes are collected
+	 *            before the model is exported
+	 */
+	public LiveExport(final LineageExporter exporter, final Model model, final File filePhylo, final Logger logger, final long delay) {
+		if (!exporter.getSettings().isIncremental()) {
+			throw new IllegalArgumentException("A live export has to be incremental.");
+		}
+		if (delay < 0) {
+			throw new IllegalArgumentException("Negative delay of a live export: " + delay);
+		}
+		this.exporter = exporter;
+		this.model = model;
+		this.filePhylo = filePhylo;
+		this.logger = logger;
+		this.delay = delay;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "JuNGLE live export");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts listening to the model and exports it right away. The model is
+	 * copied by the calling thread, hence it must not be edited concurrently.
+	 */
+	public synchronized void start() {
+		model.addModelChangeListener(this);
+		copiedModel = ModelSnapshot.of(model);
+		scheduled = true;
+		executor.execute(update);
+	}
+
+	/**
+	 * Stops listening to the model. A running update is canceled and leaves
+	 * the previously exported files untouched.
+	 */
+	public void stop() {
+		model.removeModelChangeListener(this);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return Whether the export has been stopped.
+	 */
+	public boolean isStopped() {
+		return executor.isShutdown();
+	}
+
+	/**
+	 * Exports the pending changes without waiting for the delay, e.g. after
+	 * the last frame has been tracked, and waits until the files are written.
+	 */
+	public void flush() throws InterruptedException {
+		try {
+			executor.submit(update).get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Live export failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Copies the changes of the model. This is called by the thread that has
+	 * edited the model, before it is edited again.
+	 */
+	@Override
+	public void modelChanged(final ModelChangeEvent event) {
+		synchronized (this) {
+			changed = true;
+			switch (event.getEventID()) {
+			case ModelChangeEvent.MODEL_MODIFIED:
+			case ModelChangeEvent.TRACKS_VISIBILITY_CHANGED:
+				ModelSnapshot.Changes changes = ModelSnapshot.changesOf(model, event);
+				pendingChanges.add(changes);
+				changedTracks.addAll(changes.getTrackIDs());
+				if (changes.hasRemovals()) {
+					// The previous tracks of removed Spots are only known to the snapshot
+					allTracksChanged = true;
+				}
+				break;
+			case ModelChangeEvent.SPOTS_FILTERED:
+				// The content of the tracks is unchanged, only the visibility of the Spots.
+				// Each filter replaces the visibility of all Spots of the previous one.
+				for (Iterator<ModelSnapshot.Changes> iter = pendingChanges.iterator(); iter.hasNext();) {
+					if (iter.next().isFilter()) {
+						iter.remove();
+					}
+				}
+				pendingChanges.add(ModelSnapshot.visibilityOf(model));
+				break;
+			default:
+				copyModel();
+				allTracksChanged = true;
+			}
+
+			if (!scheduled && !executor.isShutdown()) {
+				scheduled = true;
+				executor.schedule(update, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Copies the whole model, which replaces the snapshot and all previous
+	 * changes.
+	 */
+	private void copyModel() {
+		copiedModel = ModelSnapshot.of(model);
+		pendingChanges = new ArrayList<ModelSnapshot.Changes>();
+	}
+
+	/**
+	 * Exports the changes that have been collected so far.
+	 */
+	private final Runnable update = new Runnable() {
+		@Override
+		public void run() {
+			Set<Integer> tracks;
+			ModelSnapshot copy;
+			List<ModelSnapshot.Changes> changes;
+			synchronized (LiveExport.this) {
+				scheduled = false;
+				if (!changed) {
+					return;
+				}
+				tracks = allTracksChanged ? null : changedTracks;
+				copy = copiedModel;
+				changes = pendingChanges;
+				changed = false;
+				allTracksChanged = false;
+				changedTracks = new HashSet<Integer>();
+				copiedModel = null;
+				pendingChanges = new ArrayList<ModelSnapshot.Changes>();
+			}
+
+			if (copy != null) {
+				snapshot = copy;
+			}
+			for (ModelSnapshot.Changes c : changes) {
+				snapshot.apply(c);
+			}
+
+			logger.log("Live update of " + filePhylo.getName()
+					+ (tracks != null ? " (" + tracks.size() + " changed tracks)" : "") + ".\n");
+			try {
+				exporter.export(snapshot, filePhylo, logger, tracks);
+			} catch (InterruptedIOException e) {
+				logger.log("Live export stopped. Previously exported files are unchanged.\n");
+			} catch (IOException e) {
+				logger.error("Trouble writing XML:\n" + e.getMessage() + "\n");
+				restore(tracks, true);
+			} catch (RuntimeException e) {
+				// A defect rather than a transient failure, it is not repeated
+				logger.error("Live update failed:\n" + e + "\n");
+				restore(tracks, false);
+				throw e;
+			}
+		}
+	};
+
+	/**
+	 * Adds the changed tracks of a failed update to the pending changes, so
+	 * that they are traversed by the next update instead of being taken from
+	 * the cache of the previous export.
+	 *
+	 * @param retry
+	 *            Whether the next update is scheduled
+	 */
+	private synchronized void restore(final Set<Integer> tracks, final boolean retry) {
+		changed = true;
+		if (tracks == null) {
+			allTracksChanged = true;
+		} else {
+			changedTracks.addAll(tracks);
+		}
+		if (retry && !scheduled && !executor.isShutdown()) {
+			scheduled = true;
+			executor.schedule(update, Math.max(delay, RETRY_DELAY), TimeUnit.MILLISECONDS);
+		}
+	}
+
+}
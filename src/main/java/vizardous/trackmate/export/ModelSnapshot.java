@@ -0,0 +1,467 @@
+package vizardous.trackmate.export;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleDirectedGraph;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.ModelChangeEvent;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackModel;
+
+/**
+ * A copy of the Spots and tracks of a TrackMate {@link Model} that is
+ * exported by the {@link LiveExport} while the model itself is edited.
+ * <p>
+ * The copy is taken on the thread that fires the events of the model, i.e.
+ * while the model is consistent: either of the whole model by
+ * {@link #of(Model)}, of the Spots and edges of an event by
+ * {@link #changesOf(Model, ModelChangeEvent)}, or of the visibility of the
+ * Spots by {@link #visibilityOf(Model)}. The changes are applied to the
+ * snapshot on the thread of the export by {@link #apply(Changes)}, hence a
+ * snapshot is confined to a single thread.
+ * <p>
+ * The copied Spots have the IDs and the features of the originals and the
+ * tracks keep their IDs, so that a snapshot is exported exactly like the
+ * model. The outgoing edges of a Spot keep their order, which is the order
+ * of the children in the phylogeny.
+ */
+final class ModelSnapshot extends ModelView {
+
+	private final SpotCollection spots = new SpotCollection();
+	private final SimpleDirectedGraph<Spot, DefaultWeightedEdge> graph = new SimpleDirectedGraph<Spot, DefaultWeightedEdge>(DefaultWeightedEdge.class);
+	private final Map<Integer, Spot> spotsByID = new HashMap<Integer, Spot>();
+	private final Map<Spot, Integer> trackOf = new HashMap<Spot, Integer>();
+	private final Map<Integer, Set<Spot>> tracks = new HashMap<Integer, Set<Spot>>();
+	private Set<Integer> visibleTracks = Collections.emptySet();
+
+	private ModelSnapshot() {
+	}
+
+	/**
+	 * Copies a whole model. The model must not be edited during the copy.
+	 *
+	 * @param model
+	 *            The TrackMate {@link Model} that is copied
+	 * @return The snapshot of the model.
+	 */
+	static ModelSnapshot of(final Model model) {
+		ModelSnapshot snapshot = new ModelSnapshot();
+		TrackModel trackModel = model.getTrackModel();
+		for (Spot spot : model.getSpots().iterable(false)) {
+			snapshot.putSpot(spot.ID(), spot.getFeatures(), trackModel.trackIDOf(spot));
+		}
+		// The edges are copied in the order of the model
+		for (DefaultWeightedEdge edge : trackModel.edgeSet()) {
+			Spot source = snapshot.spotOf(trackModel.getEdgeSource(edge).ID());
+			Spot target = snapshot.spotOf(trackModel.getEdgeTarget(edge).ID());
+			snapshot.graph.addEdge(source, target);
+		}
+		snapshot.visibleTracks = new LinkedHashSet<Integer>(trackModel.trackIDs(true));
+		return snapshot;
+	}
+
+	/**
+	 * Copies the Spots and edges that have been added, modified or removed by
+	 * an event, and the visibility of the tracks. Removing an edge may split
+	 * a track, hence the Spots of the tracks at both ends of a removed edge
+	 * are copied with their new track.
+	 *
+	 * @param model
+	 *            The TrackMate {@link Model} that has fired the event
+	 * @param event
+	 *            An event of the model, which is copied while it is handled
+	 * @return The changes of the event.
+	 */
+	static Changes changesOf(final Model model, final ModelChangeEvent event) {
+		TrackModel trackModel = model.getTrackModel();
+		Changes changes = new Changes(trackModel.trackIDs(true));
+		Set<Spot> removedSpots = new HashSet<Spot>();
+		for (Spot spot : event.getSpots()) {
+			Integer flag = event.getSpotFlag(spot);
+			if (flag != null && flag == ModelChangeEvent.FLAG_SPOT_REMOVED) {
+				changes.removedSpots.add(spot.ID());
+				removedSpots.add(spot);
+			} else {
+				changes.addSpot(spot, trackModel.trackIDOf(spot));
+			}
+		}
+
+		Set<Spot> sources = new LinkedHashSet<Spot>();
+		Set<Spot> splitSpots = new LinkedHashSet<Spot>();
+		for (DefaultWeightedEdge edge : event.getEdges()) {
+			Integer flag = event.getEdgeFlag(edge);
+			// The ends of a removed edge are still known to the edge
+			Spot source = trackModel.getEdgeSource(edge);
+			if (flag != null && flag == ModelChangeEvent.FLAG_EDGE_REMOVED) {
+				Spot target = trackModel.getEdgeTarget(edge);
+				changes.removedSources.add(source.ID());
+				changes.removedTargets.add(target.ID());
+				splitSpots.add(source);
+				splitSpots.add(target);
+			} else {
+				sources.add(source);
+			}
+		}
+
+		// The Spots of the remaining tracks at the ends of the removed edges
+		Set<Integer> splitTracks = new HashSet<Integer>();
+		for (Spot spot : splitSpots) {
+			if (removedSpots.contains(spot)) {
+				continue;
+			}
+			Integer trackID = trackModel.trackIDOf(spot);
+			if (trackID == null) {
+				changes.moveSpot(spot.ID(), null);
+			} else if (splitTracks.add(trackID)) {
+				for (Spot s : trackModel.trackSpots(trackID)) {
+					changes.moveSpot(s.ID(), trackID);
+				}
+			}
+		}
+		// All outgoing edges of a source are copied to keep their order
+		for (Spot source : sources) {
+			List<Integer> targets = new ArrayList<Integer>(2);
+			for (DefaultWeightedEdge edge : trackModel.edgesOf(source)) {
+				if (trackModel.getEdgeSource(edge) == source) {
+					targets.add(trackModel.getEdgeTarget(edge).ID());
+				}
+			}
+			changes.addEdges(source.ID(), targets, trackModel.trackIDOf(source));
+		}
+		return changes;
+	}
+
+	/**
+	 * Copies the visibility of all Spots, which is what filtering the Spots of
+	 * the model changes. This only reads a feature of every Spot, while a copy
+	 * of the whole model copies all features and edges.
+	 *
+	 * @param model
+	 *            The TrackMate {@link Model} whose Spots have been filtered
+	 * @return The visibility of all Spots.
+	 */
+	static Changes visibilityOf(final Model model) {
+		SpotCollection modelSpots = model.getSpots();
+		Changes changes = new Changes(model.getTrackModel().trackIDs(true));
+		int n = modelSpots.getNSpots(false);
+		changes.filteredIDs = new int[n];
+		changes.visibilities = new double[n];
+		int i = 0;
+		for (Spot spot : modelSpots.iterable(false)) {
+			Double visibility = spot.getFeature(SpotCollection.VISIBLITY);
+			changes.filteredIDs[i] = spot.ID();
+			changes.visibilities[i] = visibility == null ? Double.NaN : visibility;
+			i++;
+		}
+		return changes;
+	}
+
+	/**
+	 * Applies the changes of an event to the snapshot. The changes must be
+	 * applied in the order of the events.
+	 */
+	void apply(final Changes changes) {
+		if (changes.filteredIDs != null) {
+			for (int i = 0; i < changes.filteredIDs.length; i++) {
+				if (!Double.isNaN(changes.visibilities[i])) {
+					spotOf(changes.filteredIDs[i]).putFeature(SpotCollection.VISIBLITY, changes.visibilities[i]);
+				}
+			}
+		}
+
+		for (int i = 0; i < changes.removedSources.size(); i++) {
+			removeEdge(changes.removedSources.get(i), changes.removedTargets.get(i));
+		}
+		for (Integer id : changes.removedSpots) {
+			removeSpot(id);
+		}
+		// Before the added Spots and edges, whose tracks would be merged
+		for (int i = 0; i < changes.movedIDs.size(); i++) {
+			Spot spot = spotsByID.get(changes.movedIDs.get(i));
+			if (spot != null) {
+				moveSpot(spot, changes.movedTracks.get(i));
+			}
+		}
+
+		for (int i = 0; i < changes.spotIDs.size(); i++) {
+			putSpot(changes.spotIDs.get(i), changes.features.get(i), changes.spotTracks.get(i));
+		}
+		for (int i = 0; i < changes.sources.size(); i++) {
+			Spot source = spotOf(changes.sources.get(i));
+			Integer trackID = changes.edgeTracks.get(i);
+			setTrack(source, trackID);
+
+			// Replace the outgoing edges in the order of the model
+			List<DefaultWeightedEdge> previous = new ArrayList<DefaultWeightedEdge>(graph.outgoingEdgesOf(source));
+			for (DefaultWeightedEdge edge : previous) {
+				graph.removeEdge(edge);
+			}
+			for (Integer targetID : changes.targets.get(i)) {
+				Spot target = spotOf(targetID);
+				setTrack(target, trackID);
+				graph.addEdge(source, target);
+			}
+		}
+		visibleTracks = changes.visibleTracks;
+	}
+
+	/**
+	 * Adds a copy of a Spot or updates the copy that has the same ID.
+	 */
+	private void putSpot(final int id, final Map<String, Double> features, final Integer trackID) {
+		int frame = features.get(Spot.FRAME).intValue();
+		Spot spot = spotsByID.get(id);
+		if (spot == null) {
+			spot = new Spot(id);
+			spotsByID.put(id, spot);
+			graph.addVertex(spot);
+			spots.add(spot, frame);
+		} else {
+			int previousFrame = spot.getFeature(Spot.FRAME).intValue();
+			if (previousFrame != frame) {
+				spots.remove(spot, previousFrame);
+				spots.add(spot, frame);
+			}
+		}
+		// After adding, which marks the Spot as visible
+		for (Map.Entry<String, Double> feature : features.entrySet()) {
+			spot.putFeature(feature.getKey(), feature.getValue());
+		}
+		setTrack(spot, trackID);
+	}
+
+	private void removeSpot(final int id) {
+		Spot spot = spotsByID.remove(id);
+		if (spot == null) {
+			return;
+		}
+		spots.remove(spot, spot.getFeature(Spot.FRAME).intValue());
+		graph.removeVertex(spot);
+		moveSpot(spot, null);
+	}
+
+	private void removeEdge(final int sourceID, final int targetID) {
+		Spot source = spotsByID.get(sourceID);
+		Spot target = spotsByID.get(targetID);
+		if (source == null || target == null) {
+			return;
+		}
+		for (DefaultWeightedEdge edge : graph.outgoingEdgesOf(source)) {
+			if (graph.getEdgeTarget(edge) == target) {
+				graph.removeEdge(edge);
+				return;
+			}
+		}
+	}
+
+	private Spot spotOf(final int id) {
+		Spot spot = spotsByID.get(id);
+		if (spot == null) {
+			throw new IllegalStateException("Spot " + id + " has not been copied to the snapshot");
+		}
+		return spot;
+	}
+
+	/**
+	 * Moves a single Spot to a track, e.g. after its track has been split.
+	 */
+	private void moveSpot(final Spot spot, final Integer trackID) {
+		Integer previous = trackOf.get(spot);
+		if (trackID == null ? previous == null : trackID.equals(previous)) {
+			return;
+		}
+		if (previous != null) {
+			Set<Spot> track = tracks.get(previous);
+			track.remove(spot);
+			if (track.isEmpty()) {
+				tracks.remove(previous);
+			}
+		}
+		if (trackID == null) {
+			trackOf.remove(spot);
+			return;
+		}
+		Set<Spot> track = tracks.get(trackID);
+		if (track == null) {
+			track = new HashSet<Spot>();
+			tracks.put(trackID, track);
+		}
+		trackOf.put(spot, trackID);
+		track.add(spot);
+	}
+
+	/**
+	 * Moves a Spot to a track. A track that the Spot has been part of
+	 * before has been merged into the new track, as tracks that have been
+	 * split by removals are moved by {@link #moveSpot}, hence all of its
+	 * Spots are moved.
+	 */
+	private void setTrack(final Spot spot, final Integer trackID) {
+		Integer previous = trackOf.get(spot);
+		if (trackID == null ? previous == null : trackID.equals(previous)) {
+			return;
+		}
+		Set<Spot> moved;
+		if (previous != null) {
+			moved = tracks.remove(previous);
+		} else {
+			moved = Collections.singleton(spot);
+		}
+		if (trackID == null) {
+			for (Spot s : moved) {
+				trackOf.remove(s);
+			}
+			return;
+		}
+
+		Set<Spot> track = tracks.get(trackID);
+		if (track == null) {
+			track = new HashSet<Spot>();
+			tracks.put(trackID, track);
+		}
+		for (Spot s : moved) {
+			trackOf.put(s, trackID);
+			track.add(s);
+		}
+	}
+
+	@Override
+	SpotCollection getSpots() {
+		return spots;
+	}
+
+	@Override
+	Set<Integer> visibleTrackIDs() {
+		return visibleTracks;
+	}
+
+	@Override
+	Set<Spot> vertexSet() {
+		return graph.vertexSet();
+	}
+
+	@Override
+	Set<DefaultWeightedEdge> edgeSet() {
+		return graph.edgeSet();
+	}
+
+	@Override
+	Set<DefaultWeightedEdge> edgesOf(final Spot spot) {
+		return graph.edgesOf(spot);
+	}
+
+	@Override
+	Spot getEdgeSource(final DefaultWeightedEdge edge) {
+		return graph.getEdgeSource(edge);
+	}
+
+	@Override
+	Spot getEdgeTarget(final DefaultWeightedEdge edge) {
+		return graph.getEdgeTarget(edge);
+	}
+
+	@Override
+	Integer trackIDOf(final Spot spot) {
+		return trackOf.get(spot);
+	}
+
+	@Override
+	Integer trackIDOf(final DefaultWeightedEdge edge) {
+		return trackOf.get(graph.getEdgeSource(edge));
+	}
+
+	/**
+	 * The copied Spots and edges of an event of the model. Spots and edges
+	 * refer to each other by the IDs of the Spots.
+	 */
+	static final class Changes {
+		private final Set<Integer> visibleTracks;
+		private final Set<Integer> trackIDs = new HashSet<Integer>();
+
+		/** The IDs of all Spots and their visibility, if the Spots have been filtered */
+		private int[] filteredIDs;
+		private double[] visibilities;
+
+		/** The removed Spots and edges, the ends of an edge at the same index */
+		private final List<Integer> removedSpots = new ArrayList<Integer>();
+		private final List<Integer> removedSources = new ArrayList<Integer>();
+		private final List<Integer> removedTargets = new ArrayList<Integer>();
+		/** The Spots of split tracks and their new track */
+		private final List<Integer> movedIDs = new ArrayList<Integer>();
+		private final List<Integer> movedTracks = new ArrayList<Integer>();
+
+		private final List<Integer> spotIDs = new ArrayList<Integer>();
+		private final List<Map<String, Double>> features = new ArrayList<Map<String, Double>>();
+		private final List<Integer> spotTracks = new ArrayList<Integer>();
+
+		/** The Spots with added edges, all of their targets and their track */
+		private final List<Integer> sources = new ArrayList<Integer>();
+		private final List<List<Integer>> targets = new ArrayList<List<Integer>>();
+		private final List<Integer> edgeTracks = new ArrayList<Integer>();
+
+		private Changes(final Set<Integer> visibleTracks) {
+			this.visibleTracks = new LinkedHashSet<Integer>(visibleTracks);
+		}
+
+		private void addSpot(final Spot spot, final Integer trackID) {
+			spotIDs.add(spot.ID());
+			features.add(new HashMap<String, Double>(spot.getFeatures()));
+			spotTracks.add(trackID);
+			addTrack(trackID);
+		}
+
+		private void addEdges(final int source, final List<Integer> targetIDs, final Integer trackID) {
+			sources.add(source);
+			targets.add(targetIDs);
+			edgeTracks.add(trackID);
+			addTrack(trackID);
+		}
+
+		private void moveSpot(final int id, final Integer trackID) {
+			movedIDs.add(id);
+			movedTracks.add(trackID);
+			addTrack(trackID);
+		}
+
+		private void addTrack(final Integer trackID) {
+			// Spots without a track are not exported
+			if (trackID != null) {
+				trackIDs.add(trackID);
+			}
+		}
+
+		/**
+		 * @return The IDs of the tracks that have been changed by the event.
+		 *         The tracks of removed Spots and edges are not included.
+		 */
+		Set<Integer> getTrackIDs() {
+			return trackIDs;
+		}
+
+		/**
+		 * @return Whether Spots or edges have been removed, whose previous
+		 *         tracks are only known to the snapshot.
+		 */
+		boolean hasRemovals() {
+			return !removedSpots.isEmpty() || !removedSources.isEmpty();
+		}
+
+		/**
+		 * @return Whether these are the visibilities of filtered Spots.
+		 */
+		boolean isFilter() {
+			return filteredIDs != null;
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package vizardous.trackmate.export;
+
+import java.util.Set;
+
+import org.jgrapht.graph.DefaultWeightedEdge;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import fiji.plugin.trackmate.TrackModel;
+
+/**
+ * The Spots and tracks of a TrackMate {@link Model} as they are read by an
+ * {@link ExportRun}. The methods follow those of the {@link TrackModel}.
+ * <p>
+ * An export reads a model through {@link #of(Model)}, which must not be
+ * edited during the export. A {@link ModelSnapshot} is a copy of a model that
+ * can be exported while the model itself is edited.
+ */
+abstract class ModelView {
+
+	/**
+	 * @return A view that reads through to the provided model.
+	 */
+	static ModelView of(final Model model) {
+		return new Live(model);
+	}
+
+	/**
+	 * @return The Spots of the model, by frame.
+	 */
+	abstract SpotCollection getSpots();
+
+	/**
+	 * @return The IDs of the visible tracks, in the order of the model.
+	 */
+	abstract Set<Integer> visibleTrackIDs();
+
+	/**
+	 * @return The Spots of all tracks.
+	 */
+	abstract Set<Spot> vertexSet();
+
+	/**
+	 * @return The edges of all tracks, in the order in which they have been
+	 *         added to the model.
+	 */
+	abstract Set<DefaultWeightedEdge> edgeSet();
+
+	/**
+	 * @return The incoming and outgoing edges of a Spot.
+	 */
+	abstract Set<DefaultWeightedEdge> edgesOf(Spot spot);
+
+	abstract Spot getEdgeSource(DefaultWeightedEdge edge);
+
+	abstract Spot getEdgeTarget(DefaultWeightedEdge edge);
+
+	/**
+	 * @return The ID of the track of a Spot, {@code null} if it has none.
+	 */
+	abstract Integer trackIDOf(Spot spot);
+
+	/**
+	 * @return The ID of the track of an edge.
+	 */
+	abstract Integer trackIDOf(DefaultWeightedEdge edge);
+
+	/**
+	 * The view of a TrackMate {@link Model} itself.
+	 */
+	private static final class Live extends ModelView {
+		private final Model model;
+		private final TrackModel trackModel;
+
+		Live(final Model model) {
+			this.model = model;
+			this.trackModel = model.getTrackModel();
+		}
+
+		@Override
+		SpotCollection getSpots() {
+			return model.getSpots();
+		}
+
+		@Override
+		Set<Integer> visibleTrackIDs() {
+			return trackModel.trackIDs(true);
+		}
+
+		@Override
+		Set<Spot> vertexSet() {
+			return trackModel.vertexSet();
+		}
+
+		@Override
+		Set<DefaultWeightedEdge> edgeSet() {
+			return trackModel.edgeSet();
+		}
+
+		@Override
+		Set<DefaultWeightedEdge> edgesOf(final Spot spot) {
+			return trackModel.edgesOf(spot);
+		}
+
+		@Override
+		Spot getEdgeSource(final DefaultWeightedEdge edge) {
+			return trackModel.getEdgeSource(edge);
+		}
+
+		@Override
+		Spot getEdgeTarget(final DefaultWeightedEdge edge) {
+			return trackModel.getEdgeTarget(edge);
+		}
+
+		@Override
+		Integer trackIDOf(final Spot spot) {
+			return trackModel.trackIDOf(spot);
+		}
+
+		@Override
+		Integer trackIDOf(final DefaultWeightedEdge edge) {
+			return trackModel.trackIDOf(edge);
+		}
+	}
+
+}
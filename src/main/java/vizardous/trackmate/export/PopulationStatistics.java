@@ -0,0 +1,240 @@
+package vizardous.trackmate.export;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.SpotCollection;
+import vizardous.trackmate.io.XmlWriter;
+
+/**
+ * The aggregate of the population of every frame: its center, the number of
+ * cells and, optionally, the mean and standard deviation of each mapped
+ * feature across the cells. The population of a frame are its visible spots.
+ * <p>
+ * The frames are independent and are computed in parallel; each frame is
+ * computed by a single thread in one pass over its spots, with primitive
+ * accumulators. The center is the mean position, summed in the order of the
+ * spots. The features are accumulated with Welford's algorithm, and the
+ * standard deviation is that of the population, i.e. divided by the number of
+ * values. As in the {@code <cell>} elements, values that are missing or not
+ * positive are skipped.
+ * <p>
+ * Instances are immutable once computed and are indexed by frame.
+ */
+final class PopulationStatistics {
+
+	private final SpotCollection spots;
+	/** The mapped features, {@code null} if only the centers are computed */
+	private final CellFeatureWriter featureWriter;
+	/** The number of feature slots per frame */
+	private final int slots;
+
+	private final int[] counts;
+	private final double[] centerX;
+	private final double[] centerY;
+	/** Per frame and slot: the number of values, their mean and standard deviation */
+	private final int[] valueCounts;
+	private final double[] means;
+	private final double[] stdDevs;
+
+	private PopulationStatistics(final SpotCollection spots, final CellFeatureWriter featureWriter) {
+		this.spots = spots;
+		this.featureWriter = featureWriter;
+		this.slots = featureWriter == null ? 0 : featureWriter.size();
+
+		int nFrames = spots.keySet().isEmpty() ? 0 : spots.keySet().last() + 1;
+		counts = new int[nFrames];
+		centerX = new double[nFrames];
+		centerY = new double[nFrames];
+		valueCounts = new int[nFrames * slots];
+		means = new double[nFrames * slots];
+		stdDevs = new double[nFrames * slots];
+	}
+
+	/**
+	 * Computes the statistics of the frames within a range. Frames outside of
+	 * the range are left empty.
+	 *
+	 * @param spots
+	 *            The spots of the exported model
+	 * @param firstFrame
+	 *            The first frame of the range
+	 * @param lastFrame
+	 *            The last frame of the range
+	 * @param featureWriter
+	 *            The mapped features that are summarized, {@code null} for
+	 *            the centers and counts only
+	 * @param numThreads
+	 *            The maximum number of threads
+	 * @return The statistics, indexed by frame.
+	 */
+	static PopulationStatistics compute(final SpotCollection spots, final int firstFrame, final int lastFrame,
+			final CellFeatureWriter featureWriter, final int numThreads) throws IOException {
+		final PopulationStatistics statistics = new PopulationStatistics(spots, featureWriter);
+
+		final List<Integer> frames = new ArrayList<Integer>(spots.keySet().size());
+		for (Integer frame : spots.keySet()) {
+			if (frame >= firstFrame && frame <= lastFrame) {
+				frames.add(frame);
+			}
+		}
+
+		int workers = Math.max(1, Math.min(numThreads, frames.size()));
+		if (workers == 1) {
+			statistics.new Worker(frames, new AtomicInteger()).call();
+			return statistics;
+		}
+
+		// Frames differ in size, hence the workers take one frame at a time
+		final AtomicInteger next = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>(workers);
+			for (int w = 0; w < workers; w++) {
+				results.add(executor.submit(statistics.new Worker(frames, next)));
+			}
+			for (Future<Void> result : results) {
+				result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Export has been interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return statistics;
+	}
+
+	/**
+	 * @return The number of frames, i.e. the last frame with spots plus one.
+	 */
+	int getNFrames() {
+		return counts.length;
+	}
+
+	/**
+	 * @return The number of visible spots of a frame.
+	 */
+	int getCount(final int frame) {
+		return counts[frame];
+	}
+
+	/**
+	 * @return The mean x position of a frame, NaN if it has no spots.
+	 */
+	double getCenterX(final int frame) {
+		return centerX[frame];
+	}
+
+	/**
+	 * @return The mean y position of a frame, NaN if it has no spots.
+	 */
+	double getCenterY(final int frame) {
+		return centerY[frame];
+	}
+
+	/**
+	 * @return Whether the mapped features have been summarized.
+	 */
+	boolean hasFeatures() {
+		return featureWriter != null;
+	}
+
+	/**
+	 * Writes the summary of the mapped features of a frame as children of the
+	 * current {@code <population>} element, see
+	 * {@link CellFeatureWriter#writeSummary}.
+	 */
+	void writeFeatures(final int frame, final XmlWriter out) throws IOException {
+		featureWriter.writeSummary(valueCounts, means, stdDevs, frame * slots, out);
+	}
+
+	/**
+	 * Computes frames until all frames of the list have been taken.
+	 */
+	private final class Worker implements Callable<Void> {
+		private final List<Integer> frames;
+		private final AtomicInteger next;
+		private final Double[] values = featureWriter == null ? null : featureWriter.newValues();
+		private final int[] n = new int[slots];
+		private final double[] mean = new double[slots];
+		private final double[] m2 = new double[slots];
+
+		Worker(final List<Integer> frames, final AtomicInteger next) {
+			this.frames = frames;
+			this.next = next;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			int i;
+			while ((i = next.getAndIncrement()) < frames.size()) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("Export has been canceled");
+				}
+				computeFrame(frames.get(i));
+			}
+			return null;
+		}
+
+		private void computeFrame(final int frame) {
+			for (int s = 0; s < slots; s++) {
+				n[s] = 0;
+				mean[s] = 0d;
+				m2[s] = 0d;
+			}
+
+			double totalX = 0d;
+			double totalY = 0d;
+			int count = 0;
+			Iterator<Spot> iter = spots.iterator(frame, true);
+			while (iter.hasNext()) {
+				Spot spot = iter.next();
+
+				totalX += spot.getFeature(Spot.POSITION_X);
+				totalY += spot.getFeature(Spot.POSITION_Y);
+				count++;
+
+				if (values != null) {
+					featureWriter.lookup(spot.getFeatures(), values);
+					for (int s = 0; s < slots; s++) {
+						Double value = values[s];
+						if (value != null && value > 0.0d) {
+							double x = value;
+							double delta = x - mean[s];
+							mean[s] += delta / ++n[s];
+							m2[s] += delta * (x - mean[s]);
+						}
+					}
+				}
+			}
+
+			counts[frame] = count;
+			centerX[frame] = totalX / count;
+			centerY[frame] = totalY / count;
+
+			int offset = frame * slots;
+			for (int s = 0; s < slots; s++) {
+				valueCounts[offset + s] = n[s];
+				means[offset + s] = mean[s];
+				stdDevs[offset + s] = n[s] > 0 ? Math.sqrt(m2[s] / n[s]) : 0d;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,235 @@
+package vizardous.trackmate.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import vizardous.trackmate.io.OutputFormat;
+import vizardous.trackmate.io.XmlWriter;
+
+/**
+ * Lists the files of a sharded export. The phyloXML is split into groups of
+ * tracks and the metaXML into ranges of frames; every shard is a complete
+ * document of its own. The manifest records for each shard its tracks, cell
+ * IDs or frames and its size in bytes:
+ *
+ * <pre>
+ * &lt;manifest projectName="..." tracks="..." phylogenies="..." cells="..." frames="..."&gt;
+ *   &lt;phyloxml file="tree_tracks-0000.xml" firstTrack="3" lastTrack="117" tracks="100" firstCell="0" lastCell="5210" bytes="..." /&gt;
+ *   &lt;metaxml file="tree_meta_frames-0000.xml" firstFrame="0" lastFrame="999" frames="1000" bytes="..." /&gt;
+ * &lt;/manifest&gt;
+ * </pre>
+ *
+ * Tracks are listed in export order, hence {@code firstTrack} and
+ * {@code lastTrack} are the IDs of the first and the last track of a shard.
+ * The tracks of a shard count its phylogenies: a track that is cut by a range
+ * of frames has several, which may be in different shards.
+ * Cell IDs are unique across all shards. MetaXML shard {@code k} holds the
+ * frames {@code k * framesPerShard} to {@code (k + 1) * framesPerShard - 1};
+ * shards without frames are not written.
+ */
+final class ShardManifest {
+
+	private final List<Shard> phyloShards = new ArrayList<Shard>();
+	private final List<Shard> metaShards = new ArrayList<Shard>();
+
+	/**
+	 * @return The manifest of the sharded export to the provided phyloXML.
+	 */
+	static File getManifestFile(final File filePhylo) {
+		return new File(LineageExporter.getBasePath(filePhylo) + "_manifest.xml");
+	}
+
+	/**
+	 * @return The phyloXML shard with the provided index.
+	 */
+	static File getPhyloShardFile(final File filePhylo, final int index) {
+		return new File(LineageExporter.getBasePath(filePhylo) + "_tracks-" + shardNumber(index) + ".xml" + compression(filePhylo));
+	}
+
+	/**
+	 * @return The metaXML shard with the provided index.
+	 */
+	static File getMetaShardFile(final File filePhylo, final int index) {
+		return new File(LineageExporter.getBasePath(filePhylo) + "_meta_frames-" + shardNumber(index) + ".xml" + compression(filePhylo));
+	}
+
+	private static String shardNumber(final int index) {
+		String number = Integer.toString(index);
+		return "0000".substring(Math.min(4, number.length())) + number;
+	}
+
+	private static String compression(final File filePhylo) {
+		return filePhylo.getName().endsWith(OutputFormat.GZIP_EXTENSION) ? OutputFormat.GZIP_EXTENSION : "";
+	}
+
+	synchronized void addPhylo(final File file, final Integer firstTrack, final Integer lastTrack, final int tracks, final int firstCell, final int cells, final long bytes) {
+		Shard shard = new Shard(file, bytes);
+		shard.add("firstTrack", String.valueOf(firstTrack));
+		shard.add("lastTrack", String.valueOf(lastTrack));
+		shard.add("tracks", Integer.toString(tracks));
+		shard.add("firstCell", Integer.toString(firstCell));
+		shard.add("lastCell", Integer.toString(firstCell + cells - 1));
+		phyloShards.add(shard);
+	}
+
+	synchronized void addMeta(final File file, final int firstFrame, final int lastFrame, final int frames, final long bytes) {
+		Shard shard = new Shard(file, bytes);
+		shard.add("firstFrame", Integer.toString(firstFrame));
+		shard.add("lastFrame", Integer.toString(lastFrame));
+		shard.add("frames", Integer.toString(frames));
+		metaShards.add(shard);
+	}
+
+	/**
+	 * @return The number of bytes of all phyloXML shards.
+	 */
+	synchronized long getPhyloBytes() {
+		return totalBytes(phyloShards);
+	}
+
+	/**
+	 * @return The number of bytes of all metaXML shards.
+	 */
+	synchronized long getMetaBytes() {
+		return totalBytes(metaShards);
+	}
+
+	synchronized int getPhyloShards() {
+		return phyloShards.size();
+	}
+
+	synchronized int getMetaShards() {
+		return metaShards.size();
+	}
+
+	private static long totalBytes(final List<Shard> shards) {
+		long bytes = 0;
+		for (Shard shard : shards) {
+			bytes += shard.bytes;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the manifest.
+	 *
+	 * @param file
+	 *            The destination of the manifest
+	 * @param projectName
+	 *            The project name of the export
+	 * @param tracks
+	 *            The number of exported tracks
+	 * @param phylogenies
+	 *            The number of exported phylogenies
+	 * @param cells
+	 *            The number of exported cells
+	 * @param frames
+	 *            The number of exported frames
+	 */
+	synchronized void write(final File file, final String projectName, final int tracks, final int phylogenies, final int cells, final int frames) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			XmlWriter root = new XmlWriter(out);
+			root.writeDeclaration();
+			root.startElement("manifest");
+			root.attribute("projectName", projectName);
+			root.attribute("tracks", Integer.toString(tracks));
+			root.attribute("phylogenies", Integer.toString(phylogenies));
+			root.attribute("cells", Integer.toString(cells));
+			root.attribute("frames", Integer.toString(frames));
+
+			for (Shard shard : phyloShards) {
+				shard.write("phyloxml", root);
+			}
+			for (Shard shard : metaShards) {
+				shard.write("metaxml", root);
+			}
+
+			root.endDocument();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Deletes the shards of a previous export that are not part of this
+	 * export, and the manifest if this export has not been sharded.
+	 *
+	 * @param filePhylo
+	 *            The destination of the phyloXML
+	 * @param sharded
+	 *            Whether a manifest has been written
+	 */
+	synchronized void deleteStaleShards(final File filePhylo, final boolean sharded) {
+		if (!sharded) {
+			getManifestFile(filePhylo).delete();
+		}
+		int index = 0;
+		while (index < phyloShards.size() && phyloShards.get(index).file.equals(getPhyloShardFile(filePhylo, index))) {
+			index++;
+		}
+		for (; getPhyloShardFile(filePhylo, index).delete(); index++) {
+			// Delete until there are no more shards
+		}
+		// MetaXML shards are numbered by frame range and may have gaps
+		for (File file : staleMetaShards(filePhylo)) {
+			file.delete();
+		}
+	}
+
+	private List<File> staleMetaShards(final File filePhylo) {
+		List<File> stale = new ArrayList<File>();
+		File folder = filePhylo.getAbsoluteFile().getParentFile();
+		String prefix = new File(LineageExporter.getBasePath(filePhylo)).getName() + "_meta_frames-";
+		String[] names = folder.list();
+		if (names == null) {
+			return stale;
+		}
+
+		List<String> current = new ArrayList<String>();
+		for (Shard shard : metaShards) {
+			current.add(shard.file.getName());
+		}
+		for (String name : names) {
+			if (name.startsWith(prefix) && name.endsWith(".xml" + compression(filePhylo)) && !current.contains(name)) {
+				stale.add(new File(folder, name));
+			}
+		}
+		return stale;
+	}
+
+	/**
+	 * A single shard and the attributes of its manifest entry.
+	 */
+	private static final class Shard {
+		final File file;
+		final long bytes;
+		final List<String> attributes = new ArrayList<String>();
+
+		Shard(final File file, final long bytes) {
+			this.file = file;
+			this.bytes = bytes;
+		}
+
+		void add(final String name, final String value) {
+			attributes.add(name);
+			attributes.add(value);
+		}
+
+		void write(final String element, final XmlWriter out) throws IOException {
+			out.startElement(element);
+			out.attribute("file", file.getName());
+			for (int i = 0; i < attributes.size(); i += 2) {
+				out.attribute(attributes.get(i), attributes.get(i + 1));
+			}
+			out.attribute("bytes", Long.toString(bytes));
+			out.endElement();
+		}
+	}
+
+}
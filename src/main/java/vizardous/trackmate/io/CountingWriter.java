@@ -0,0 +1,91 @@
+package vizardous.trackmate.io;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A {@link Writer} that counts the bytes of the UTF-8 encoding of the
+ * characters that pass through it, so that the byte offset of an element in
+ * the written file is known without flushing the encoder.
+ * <p>
+ * The start of an element is found with {@link #markElement()}: the next
+ * {@code '<'} that is written is taken as the start of the element. Any
+ * whitespace or the end of a previous start tag before it is skipped.
+ */
+public final class CountingWriter extends FilterWriter {
+
+	private long count = 0;
+	private boolean marking = false;
+	private long elementOffset = -1;
+
+	/**
+	 * @param out
+	 *            The writer of the UTF-8 encoded file
+	 */
+	public CountingWriter(final Writer out) {
+		super(out);
+	}
+
+	/**
+	 * @return The number of bytes that have been written so far.
+	 */
+	public long getByteCount() {
+		return count;
+	}
+
+	/**
+	 * Takes the next {@code '<'} that is written as the start of an element.
+	 */
+	public void markElement() {
+		marking = true;
+		elementOffset = -1;
+	}
+
+	/**
+	 * @return The byte offset of the element that has been written after
+	 *         {@link #markElement()}, -1 if none has been written.
+	 */
+	public long getElementOffset() {
+		return elementOffset;
+	}
+
+	@Override
+	public void write(final int c) throws IOException {
+		out.write(c);
+		count(c);
+	}
+
+	@Override
+	public void write(final char[] cbuf, final int off, final int len) throws IOException {
+		out.write(cbuf, off, len);
+		for (int i = off; i < off + len; i++) {
+			count(cbuf[i]);
+		}
+	}
+
+	@Override
+	public void write(final String str, final int off, final int len) throws IOException {
+		out.write(str, off, len);
+		for (int i = off; i < off + len; i++) {
+			count(str.charAt(i));
+		}
+	}
+
+	private void count(final int c) {
+		if (marking && c == '<') {
+			elementOffset = count;
+			marking = false;
+		}
+
+		// A surrogate pair is encoded with four bytes
+		if (c < 0x80) {
+			count++;
+		} else if (c < 0x800 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+			count += 2;
+		} else {
+			count += 3;
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+package vizardous.trackmate.io;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Appends doubles with a fixed number of fraction digits to an
+ * {@link Appendable} without allocating intermediate objects.
+ * <p>
+ * The output is identical to {@code String.format(Locale.US, "%.<n>f", value)}.
+ * {@link java.util.Formatter} rounds the shortest decimal representation of a
+ * double half-up, which can differ from rounding its exact binary value only
+ * if the value lies within a few ulps of a rounding boundary. These rare
+ * values, as well as values that are too large to be scaled exactly, are
+ * delegated to {@link String#format(Locale, String, Object...)}.
+ */
+public final class FixedPointFormat {
+
+	/** Highest supported number of fraction digits */
+	public static final int MAX_PRECISION = 9;
+
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9 };
+
+	private static final long[] LONG_POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L,
+			10000000L, 100000000L, 1000000000L };
+
+	/** Scaled values below this bound are integral or have an exact fraction */
+	private static final double MAX_EXACT = 1L << 52;
+
+	/** Distance from a rounding boundary, in ulps, below which the JDK decides */
+	private static final int TIE_TOLERANCE_ULPS = 4;
+
+	/** Values from this bound on have more digits than {@link #appendDigits} supports */
+	private static final long MAX_DIGITS_VALUE = 1000000000000000000L;
+
+	private FixedPointFormat() {
+		// Utility class
+	}
+
+	/**
+	 * Appends the provided value with the given number of fraction digits.
+	 *
+	 * @param out
+	 *            The target of the formatted value
+	 * @param value
+	 *            The value that is to be formatted
+	 * @param precision
+	 *            The number of fraction digits, at most {@link #MAX_PRECISION}
+	 */
+	public static void append(final Appendable out, final double value, final int precision) throws IOException {
+		if (precision < 0 || precision > MAX_PRECISION) {
+			throw new IllegalArgumentException("Unsupported precision: " + precision);
+		}
+
+		// Formatter also prints the sign of -0.0
+		final boolean negative = Double.compare(value, 0.0d) < 0;
+		final double scaled = Math.abs(value) * POWERS_OF_TEN[precision];
+		if (!(scaled < MAX_EXACT)) {
+			// NaN, infinite or too large
+			appendFormatted(out, value, precision);
+			return;
+		}
+
+		final double floor = Math.floor(scaled);
+		final double fraction = scaled - floor;
+		if (Math.abs(fraction - 0.5d) <= TIE_TOLERANCE_ULPS * Math.ulp(scaled)) {
+			appendFormatted(out, value, precision);
+			return;
+		}
+
+		final long digits = (long) floor + (fraction > 0.5d ? 1 : 0);
+		final long pow = LONG_POWERS_OF_TEN[precision];
+
+		if (negative) {
+			out.append('-');
+		}
+		appendDigits(out, digits / pow, 1);
+		if (precision > 0) {
+			out.append('.');
+			appendDigits(out, digits % pow, precision);
+		}
+	}
+
+	/**
+	 * Appends an integer. The output is identical to
+	 * {@link Long#toString(long)}, but no String is allocated.
+	 *
+	 * @param out
+	 *            The target of the formatted value
+	 * @param value
+	 *            The value that is to be formatted
+	 */
+	public static void appendInteger(final Appendable out, final long value) throws IOException {
+		if (value <= -MAX_DIGITS_VALUE || value >= MAX_DIGITS_VALUE) {
+			out.append(Long.toString(value));
+			return;
+		}
+
+		if (value < 0) {
+			out.append('-');
+		}
+		appendDigits(out, Math.abs(value), 1);
+	}
+
+	/**
+	 * Appends a non-negative number, padded with leading zeros to at least
+	 * {@code minDigits} digits.
+	 */
+	private static void appendDigits(final Appendable out, long value, final int minDigits) throws IOException {
+		int numDigits = 1;
+		long pow = 1;
+		while (numDigits < 18 && pow * 10 <= value) {
+			pow *= 10;
+			numDigits++;
+		}
+
+		for (int i = numDigits; i < minDigits; i++) {
+			out.append('0');
+		}
+		while (pow > 0) {
+			out.append((char) ('0' + value / pow));
+			value %= pow;
+			pow /= 10;
+		}
+	}
+
+	private static void appendFormatted(final Appendable out, final double value, final int precision) throws IOException {
+		out.append(String.format(Locale.US, "%." + precision + "f", value));
+	}
+
+}
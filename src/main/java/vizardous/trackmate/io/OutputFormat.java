@@ -0,0 +1,102 @@
+package vizardous.trackmate.io;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Describes how exported XML files are written: either indented like JDOM's
+ * pretty format or compact without any whitespace between elements, and
+ * either as plain text or gzip compressed.
+ */
+public final class OutputFormat {
+
+	/** The format of previous plugin versions: indented, uncompressed */
+	public static final OutputFormat PRETTY = new OutputFormat(false, false);
+
+	public static final String GZIP_EXTENSION = ".gz";
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final boolean compact;
+	private final boolean gzip;
+
+	/**
+	 * @param compact
+	 *            Whether elements are written without indentation
+	 * @param gzip
+	 *            Whether files are gzip compressed
+	 */
+	public OutputFormat(final boolean compact, final boolean gzip) {
+		this.compact = compact;
+		this.gzip = gzip;
+	}
+
+	public boolean isCompact() {
+		return compact;
+	}
+
+	public boolean isGzip() {
+		return gzip;
+	}
+
+	/**
+	 * Creates an {@link XmlWriter} that writes in this format.
+	 *
+	 * @see XmlWriter#XmlWriter(Appendable, int, boolean)
+	 */
+	public XmlWriter newXmlWriter(final Appendable out, final int baseDepth) {
+		return new XmlWriter(out, baseDepth, !compact);
+	}
+
+	/**
+	 * Opens a buffered, UTF-8 encoded {@link Writer} for the provided file.
+	 * The file is compressed on the fly if required.
+	 */
+	public Writer openWriter(final File file) throws IOException {
+		return openWriter(file, null);
+	}
+
+	/**
+	 * Opens a buffered, UTF-8 encoded {@link Writer} for the provided file
+	 * that updates a checksum with the bytes of the file, i.e. after
+	 * compression.
+	 *
+	 * @param checksum
+	 *            The checksum of the file, {@code null} for none
+	 */
+	public Writer openWriter(final File file, final Checksum checksum) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		if (checksum != null) {
+			out = new CheckedOutputStream(out, checksum);
+		}
+		try {
+			if (gzip) {
+				out = new GZIPOutputStream(out, BUFFER_SIZE);
+			}
+			return new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+		} catch (IOException e) {
+			out.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends the gzip extension to the name of the provided file if files are
+	 * compressed and the extension is missing.
+	 */
+	public File withExtension(final File file) {
+		if (gzip && !file.getName().endsWith(GZIP_EXTENSION)) {
+			return new File(file.getPath() + GZIP_EXTENSION);
+		}
+		return file;
+	}
+
+}
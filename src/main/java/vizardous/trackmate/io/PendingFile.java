@@ -0,0 +1,59 @@
+package vizardous.trackmate.io;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A file that is written to a temporary file in the same folder first. The
+ * target is only replaced by {@link #commit()}, hence readers never see a
+ * half-written file and a failed export leaves previous files untouched.
+ */
+public final class PendingFile {
+
+	private final File target;
+	private final File temp;
+
+	/**
+	 * Creates the temporary file next to the provided target.
+	 *
+	 * @param target
+	 *            The file that is eventually replaced
+	 */
+	public PendingFile(final File target) throws IOException {
+		this.target = target.getAbsoluteFile();
+		this.temp = File.createTempFile("." + this.target.getName() + ".", ".tmp", this.target.getParentFile());
+	}
+
+	/**
+	 * @return The temporary file that is to be written.
+	 */
+	public File getFile() {
+		return temp;
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	/**
+	 * Moves the temporary file to the target. The rename is atomic on POSIX
+	 * file systems; elsewhere an existing target has to be deleted first.
+	 */
+	public void commit() throws IOException {
+		if (temp.renameTo(target)) {
+			return;
+		}
+		if (target.exists() && target.delete() && temp.renameTo(target)) {
+			return;
+		}
+		throw new IOException("Could not move " + temp + " to " + target);
+	}
+
+	/**
+	 * Deletes the temporary file.
+	 */
+	public void discard() {
+		temp.delete();
+	}
+
+}
@@ -0,0 +1,379 @@
+package vizardous.trackmate.io;
+
+import java.io.IOException;
+
+/**
+ * A minimal streaming XML writer that appends elements straight to an
+ * {@link Appendable} instead of building a DOM first.
+ * <p>
+ * The output mimics JDOM's {@code XMLOutputter} with
+ * {@code Format.getPrettyFormat()} (two-space indentation, CRLF line
+ * separators, trimmed text, {@code <empty />} elements) so that files written
+ * with this class are equivalent to the ones written by previous versions of
+ * the exporter.
+ * <p>
+ * Optionally, indentation can be disabled. Elements are then written without
+ * any whitespace in between.
+ * <p>
+ * A writer can also be started at a nesting depth greater than zero. Its
+ * output is then a fragment that can be spliced into another writer with
+ * {@link #fragment(CharSequence)}.
+ */
+public class XmlWriter {
+
+	public static final String LINE_SEPARATOR = "\r\n";
+	public static final String INDENT = "  ";
+
+	/* State of the innermost element */
+	private static final int CONTENT = 0;
+	private static final int OPEN = 1;
+	private static final int TEXT = 2;
+
+	private final Appendable out;
+	private final int baseDepth;
+	private final boolean indent;
+
+	private String[] names = new String[16];
+	private int depth = 0;
+	private int state = CONTENT;
+
+	/*
+	 * CONSTRUCTORS
+	 */
+	public XmlWriter(final Appendable out) {
+		this(out, 0);
+	}
+
+	/**
+	 * @param out
+	 *            The target of the serialized XML
+	 * @param baseDepth
+	 *            Nesting depth of the first element that is written with this
+	 *            writer
+	 */
+	public XmlWriter(final Appendable out, final int baseDepth) {
+		this(out, baseDepth, true);
+	}
+
+	/**
+	 * @param out
+	 *            The target of the serialized XML
+	 * @param baseDepth
+	 *            Nesting depth of the first element that is written with this
+	 *            writer
+	 * @param indent
+	 *            Whether nested elements are written on separate, indented
+	 *            lines
+	 */
+	public XmlWriter(final Appendable out, final int baseDepth, final boolean indent) {
+		this.out = out;
+		this.baseDepth = baseDepth;
+		this.indent = indent;
+	}
+
+	/**
+	 * Writes the XML declaration.
+	 */
+	public void writeDeclaration() throws IOException {
+		out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		out.append(LINE_SEPARATOR);
+	}
+
+	public XmlWriter startElement(final String name) throws IOException {
+		closeStartTag();
+
+		if (depth == names.length) {
+			String[] tmp = new String[names.length * 2];
+			System.arraycopy(names, 0, tmp, 0, names.length);
+			names = tmp;
+		}
+		names[depth] = name;
+
+		// The root element directly follows the declaration
+		if (baseDepth + depth > 0) {
+			newline(baseDepth + depth);
+		}
+		out.append('<').append(name);
+
+		depth++;
+		state = OPEN;
+		return this;
+	}
+
+	public XmlWriter attribute(final String name, final String value) throws IOException {
+		if (state != OPEN) {
+			throw new IllegalStateException("Attribute " + name + " written outside of a start tag");
+		}
+		out.append(' ').append(name).append("=\"");
+		escapeAttribute(value);
+		out.append('"');
+		return this;
+	}
+
+	/**
+	 * Writes an integer attribute without converting it to a String first.
+	 */
+	public XmlWriter attribute(final String name, final long value) throws IOException {
+		if (state != OPEN) {
+			throw new IllegalStateException("Attribute " + name + " written outside of a start tag");
+		}
+		out.append(' ').append(name).append("=\"");
+		FixedPointFormat.appendInteger(out, value);
+		out.append('"');
+		return this;
+	}
+
+	/**
+	 * Writes the text content of the current element. As with JDOM's pretty
+	 * format, leading and trailing whitespace is removed.
+	 */
+	public XmlWriter text(final String text) throws IOException {
+		if (state == CONTENT) {
+			throw new IllegalStateException("Mixed content is not supported");
+		}
+		if (text == null) {
+			return this;
+		}
+
+		int start = 0;
+		int end = text.length();
+		while (start < end && isWhitespace(text.charAt(start))) {
+			start++;
+		}
+		while (end > start && isWhitespace(text.charAt(end - 1))) {
+			end--;
+		}
+		if (start == end) {
+			return this;
+		}
+
+		if (state == OPEN) {
+			out.append('>');
+			state = TEXT;
+		}
+		escapeText(text, start, end);
+		return this;
+	}
+
+	/**
+	 * Writes a number with a fixed number of fraction digits as text content
+	 * of the current element. The number is formatted like
+	 * {@code String.format(Locale.US, "%.<precision>f", value)}.
+	 * 
+	 * @see FixedPointFormat
+	 */
+	public XmlWriter text(final double value, final int precision) throws IOException {
+		if (state == CONTENT) {
+			throw new IllegalStateException("Mixed content is not supported");
+		}
+
+		if (state == OPEN) {
+			out.append('>');
+			state = TEXT;
+		}
+		FixedPointFormat.append(out, value, precision);
+		return this;
+	}
+
+	/**
+	 * Writes an integer as text content of the current element without
+	 * converting it to a String first.
+	 */
+	public XmlWriter text(final long value) throws IOException {
+		if (state == CONTENT) {
+			throw new IllegalStateException("Mixed content is not supported");
+		}
+
+		if (state == OPEN) {
+			out.append('>');
+			state = TEXT;
+		}
+		FixedPointFormat.appendInteger(out, value);
+		return this;
+	}
+
+	/**
+	 * Writes text content that needs neither escaping nor trimming, e.g.
+	 * Base64, without converting it to a String first.
+	 */
+	public XmlWriter unescapedText(final CharSequence text) throws IOException {
+		if (state == CONTENT) {
+			throw new IllegalStateException("Mixed content is not supported");
+		}
+		if (text.length() == 0) {
+			return this;
+		}
+
+		if (state == OPEN) {
+			out.append('>');
+			state = TEXT;
+		}
+		out.append(text);
+		return this;
+	}
+
+	/**
+	 * Convenience method for an element that only contains text.
+	 */
+	public XmlWriter textElement(final String name, final String text) throws IOException {
+		return startElement(name).text(text).endElement();
+	}
+
+	public XmlWriter endElement() throws IOException {
+		if (depth == 0) {
+			throw new IllegalStateException("No open element");
+		}
+		depth--;
+
+		switch (state) {
+		case OPEN:
+			out.append(" />");
+			break;
+		case TEXT:
+			out.append("</").append(names[depth]).append('>');
+			break;
+		default:
+			newline(baseDepth + depth);
+			out.append("</").append(names[depth]).append('>');
+		}
+		names[depth] = null;
+
+		state = CONTENT;
+		return this;
+	}
+
+	/**
+	 * Appends content that has been serialized by another {@link XmlWriter}
+	 * whose base depth is one level deeper than the current element.
+	 */
+	public XmlWriter fragment(final CharSequence fragment) throws IOException {
+		closeStartTag();
+		state = CONTENT;
+		out.append(fragment);
+		return this;
+	}
+
+	/**
+	 * Closes all open elements and terminates the document.
+	 */
+	public void endDocument() throws IOException {
+		while (depth > 0) {
+			endElement();
+		}
+		if (baseDepth == 0) {
+			out.append(LINE_SEPARATOR);
+		}
+	}
+
+	/**
+	 * @return The number of currently open elements.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	private void closeStartTag() throws IOException {
+		if (state == OPEN) {
+			out.append('>');
+		} else if (state == TEXT) {
+			throw new IllegalStateException("Mixed content is not supported");
+		}
+		state = CONTENT;
+	}
+
+	private void newline(final int level) throws IOException {
+		if (!indent) {
+			return;
+		}
+		out.append(LINE_SEPARATOR);
+		for (int i = 0; i < level; i++) {
+			out.append(INDENT);
+		}
+	}
+
+	private void escapeText(final String text, final int start, final int end) throws IOException {
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '<':
+				out.append("&lt;");
+				break;
+			case '>':
+				out.append("&gt;");
+				break;
+			case '&':
+				out.append("&amp;");
+				break;
+			case '\r':
+				out.append("&#xD;");
+				break;
+			case '\n':
+				out.append(LINE_SEPARATOR);
+				break;
+			default:
+				if (isSupplementary(text, i, end)) {
+					appendCharacterReference(text, i++);
+				} else {
+					out.append(c);
+				}
+			}
+		}
+	}
+
+	private void escapeAttribute(final String value) throws IOException {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '<':
+				out.append("&lt;");
+				break;
+			case '>':
+				out.append("&gt;");
+				break;
+			case '"':
+				out.append("&quot;");
+				break;
+			case '&':
+				out.append("&amp;");
+				break;
+			case '\r':
+				out.append("&#xD;");
+				break;
+			case '\n':
+				out.append("&#xA;");
+				break;
+			case '\t':
+				out.append("&#x9;");
+				break;
+			default:
+				if (isSupplementary(value, i, value.length())) {
+					appendCharacterReference(value, i++);
+				} else {
+					out.append(c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Whether a surrogate pair starts at the provided index.
+	 */
+	private static boolean isSupplementary(final String text, final int i, final int end) {
+		return Character.isHighSurrogate(text.charAt(i)) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1));
+	}
+
+	/**
+	 * Writes the surrogate pair at the provided index as a character
+	 * reference. Like JDOM, characters beyond the Basic Multilingual Plane
+	 * are escaped even in UTF-8.
+	 */
+	private void appendCharacterReference(final String text, final int i) throws IOException {
+		int codePoint = Character.toCodePoint(text.charAt(i), text.charAt(i + 1));
+		out.append("&#x").append(Integer.toHexString(codePoint)).append(';');
+	}
+
+	private static boolean isWhitespace(final char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+
+}
@@ -0,0 +1,155 @@
+package vizardous.trackmate.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import fiji.plugin.trackmate.Model;
+
+/**
+ * Checks the layout of the binary cell table and its rows against the
+ * phyloXML and the metaXML.
+ */
+public class CellTableTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Model model = TestModels.lineages(13, 25, 12);
+
+	private static Document parse(final File file) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		return factory.newDocumentBuilder().parse(file);
+	}
+
+	private static String text(final Element element, final String child) {
+		for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node instanceof Element && node.getNodeName().equals(child)) {
+				return node.getTextContent().trim();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The mother of every cell of the phyloXML, -1 for the first cell
+	 *         of a phylogeny.
+	 */
+	private static Map<Integer, Integer> parents(final File filePhylo) throws Exception {
+		Map<Integer, Integer> parents = new HashMap<Integer, Integer>();
+		NodeList clades = parse(filePhylo).getElementsByTagName("clade");
+		for (int i = 0; i < clades.getLength(); i++) {
+			Element clade = (Element) clades.item(i);
+			Node parent = clade.getParentNode();
+			int parentID = parent.getNodeName().equals("clade") ? Integer.parseInt(text((Element) parent, "name")) : -1;
+			parents.put(Integer.parseInt(text(clade, "name")), parentID);
+		}
+		return parents;
+	}
+
+	/**
+	 * @return The frame of every cell of the metaXML.
+	 */
+	private static Map<Integer, Integer> frames(final File fileMeta) throws Exception {
+		Map<Integer, Integer> frames = new HashMap<Integer, Integer>();
+		NodeList cells = parse(fileMeta).getElementsByTagName("cell");
+		for (int i = 0; i < cells.getLength(); i++) {
+			Element cell = (Element) cells.item(i);
+			Element frame = (Element) cell.getParentNode();
+			frames.put(Integer.parseInt(cell.getAttribute("id")), Integer.parseInt(frame.getAttribute("id")));
+		}
+		return frames;
+	}
+
+	private static String string(final ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void assertTable(final ExportSettings.Builder settings) throws Exception {
+		File filePhylo = new File(folder.getRoot(), "tree.xml");
+		new LineageExporter(settings.writeCellTable(true).build()).export(model, filePhylo);
+		Map<Integer, Integer> parents = parents(filePhylo);
+		Map<Integer, Integer> frames = frames(LineageExporter.getMetaFile(filePhylo));
+
+		RandomAccessFile file = new RandomAccessFile(CellTable.getCellTableFile(filePhylo), "r");
+		try {
+			MappedByteBuffer table = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+			table.order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(CellTable.MAGIC, table.getInt());
+			assertEquals(CellTable.VERSION, table.getInt());
+			int rows = (int) table.getLong();
+			int columns = table.getInt();
+			table.getInt();
+			assertEquals(parents.size(), rows);
+
+			List<String> names = new ArrayList<String>();
+			Map<String, Integer> columnOffsets = new HashMap<String, Integer>();
+			long end = 0;
+			for (int c = 0; c < columns; c++) {
+				int type = table.getInt();
+				table.getInt();
+				long offset = table.getLong();
+				String name = string(table);
+				string(table);
+				names.add(name);
+				columnOffsets.put(name, (int) offset);
+
+				assertEquals(name, 0, offset % 8);
+				assertTrue(name, offset >= end);
+				assertEquals(name, c < 3 ? CellTable.INT32 : CellTable.FLOAT64, type);
+				end = offset + (long) rows * (type == CellTable.INT32 ? 4 : 8);
+			}
+			assertTrue(end <= file.length());
+			assertEquals(Arrays.asList("cell_id", "frame", "parent_id", "x", "y", "length", "area",
+					"fluorescence.yfp.mean", "fluorescence.yfp.stddev"), names);
+
+			for (int row = 0; row < rows; row++) {
+				assertEquals(row, table.getInt(columnOffsets.get("cell_id") + 4 * row));
+				assertEquals("Frame of cell " + row, frames.get(row).intValue(), table.getInt(columnOffsets.get("frame") + 4 * row));
+				assertEquals("Parent of cell " + row, parents.get(row).intValue(), table.getInt(columnOffsets.get("parent_id") + 4 * row));
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	@Test
+	public void rowsMatchTheXML() throws Exception {
+		assertTable(TestModels.settings());
+	}
+
+	@Test
+	public void rowsMatchTheXMLWithinFrameRange() throws Exception {
+		// Cells that enter the range have no parent
+		assertTable(TestModels.settings().frameRange(5, 9).numThreads(4));
+	}
+
+}
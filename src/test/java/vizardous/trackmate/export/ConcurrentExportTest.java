@@ -0,0 +1,67 @@
+package vizardous.trackmate.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Model;
+
+/**
+ * Checks that the export does not depend on the number of threads that
+ * marshall the tracks.
+ */
+public class ConcurrentExportTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Model model = TestModels.lineages(11, 60, 15);
+
+	/**
+	 * Exports the model with one and with several threads and compares all
+	 * exported files.
+	 */
+	private void assertSameExport(final ExportSettings.Builder settings) throws IOException {
+		File single = folder.newFolder("single");
+		File concurrent = folder.newFolder("concurrent");
+		new LineageExporter(settings.numThreads(1).build()).export(model, new File(single, "tree.xml"));
+		new LineageExporter(settings.numThreads(8).build()).export(model, new File(concurrent, "tree.xml"));
+
+		String[] files = single.list();
+		Arrays.sort(files);
+		String[] concurrentFiles = concurrent.list();
+		Arrays.sort(concurrentFiles);
+		assertEquals(Arrays.asList(files), Arrays.asList(concurrentFiles));
+		for (String file : files) {
+			assertArrayEquals(file, TestModels.read(new File(single, file)), TestModels.read(new File(concurrent, file)));
+		}
+	}
+
+	@Test
+	public void plain() throws IOException {
+		assertSameExport(TestModels.settings());
+	}
+
+	@Test
+	public void sidecars() throws IOException {
+		assertSameExport(TestModels.settings().writeCellTable(true).writeIndex(true).writePopulationStatistics(true));
+	}
+
+	@Test
+	public void sharded() throws IOException {
+		assertSameExport(TestModels.settings().tracksPerShard(7).framesPerShard(4).writeIndex(true));
+	}
+
+	@Test
+	public void frameRange() throws IOException {
+		assertSameExport(TestModels.settings().frameRange(4, 11));
+	}
+
+}
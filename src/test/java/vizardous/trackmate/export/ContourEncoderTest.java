@@ -0,0 +1,31 @@
+package vizardous.trackmate.export;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+/**
+ * Compares the Base64 encoding of the outlines with commons-codec.
+ */
+public class ContourEncoderTest {
+
+	@Test
+	public void base64() {
+		Random random = new Random(7);
+		StringBuilder out = new StringBuilder();
+		for (int length = 0; length < 200; length++) {
+			byte[] bytes = new byte[length + 5];
+			random.nextBytes(bytes);
+
+			// Only the valid part of a larger buffer is encoded
+			out.setLength(0);
+			ContourEncoder.appendBase64(bytes, length, out);
+			assertEquals("Length " + length, Base64.encodeBase64String(Arrays.copyOf(bytes, length)), out.toString());
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+package vizardous.trackmate.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Model;
+import vizardous.trackmate.io.OutputFormat;
+
+/**
+ * Checks that the entries of the index point at the {@code <frame>} and
+ * {@code <phylogeny>} elements and that the documents match the files.
+ */
+public class ExportIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Model model = TestModels.lineages(17, 30, 10);
+
+	private static String string(final ByteBuffer buffer, final int length) throws IOException {
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static String element(final byte[] document, final long offset, final long length) throws IOException {
+		assertTrue(offset >= 0 && offset + length <= document.length);
+		return new String(document, (int) offset, (int) length, "UTF-8");
+	}
+
+	private void assertIndex(final ExportSettings.Builder settings, final int expectedDocuments) throws IOException {
+		File filePhylo = new File(folder.getRoot(), "tree.xml");
+		new LineageExporter(settings.writeIndex(true).build()).export(model, filePhylo);
+
+		ByteBuffer index = ByteBuffer.wrap(TestModels.read(ExportIndex.getIndexFile(filePhylo))).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(ExportIndex.MAGIC, index.getInt());
+		assertEquals(ExportIndex.VERSION, index.getInt());
+		int documentCount = index.getInt();
+		int frames = index.getInt();
+		int phylogenies = index.getInt();
+		index.getInt();
+		assertEquals(expectedDocuments, documentCount);
+
+		// The document table follows the entries
+		int entries = index.position();
+		index.position(entries + 24 * (frames + phylogenies));
+		List<byte[]> documents = new ArrayList<byte[]>();
+		List<Integer> types = new ArrayList<Integer>();
+		for (int d = 0; d < documentCount; d++) {
+			long size = index.getLong();
+			long crc = index.getLong();
+			types.add(index.getInt());
+			String name = string(index, index.getInt());
+			byte[] document = TestModels.read(new File(folder.getRoot(), name));
+			CRC32 checksum = new CRC32();
+			checksum.update(document);
+			assertEquals(name, document.length, size);
+			assertEquals(name, checksum.getValue(), crc);
+			documents.add(document);
+		}
+		assertEquals(index.limit(), index.position());
+
+		index.position(entries);
+		int previous = Integer.MIN_VALUE;
+		for (int i = 0; i < frames; i++) {
+			int frame = index.getInt();
+			int document = index.getInt();
+			String element = element(documents.get(document), index.getLong(), index.getLong());
+			assertEquals(ExportIndex.METAXML, types.get(document).intValue());
+			assertTrue(frame >= previous);
+			assertTrue(element, element.startsWith("<frame id=\"" + frame + "\">"));
+			assertTrue(element, element.endsWith("</frame>"));
+			previous = frame;
+		}
+		previous = Integer.MIN_VALUE;
+		for (int i = 0; i < phylogenies; i++) {
+			int trackID = index.getInt();
+			int document = index.getInt();
+			String element = element(documents.get(document), index.getLong(), index.getLong());
+			assertEquals(ExportIndex.PHYLOXML, types.get(document).intValue());
+			assertTrue(trackID >= previous);
+			assertTrue(element, element.startsWith("<phylogeny>"));
+			assertTrue(element, element.contains("<id>" + trackID + "</id>"));
+			assertTrue(element, element.endsWith("</phylogeny>"));
+			previous = trackID;
+		}
+	}
+
+	@Test
+	public void entriesPointAtElements() throws IOException {
+		assertIndex(TestModels.settings(), 2);
+	}
+
+	@Test
+	public void offsetsCountBytes() throws IOException {
+		// Characters of two and three bytes before every element
+		assertIndex(TestModels.settings().projectName("Zellen \u00e4\u20ac"), 2);
+	}
+
+	@Test
+	public void shardedDocuments() throws IOException {
+		assertIndex(TestModels.settings().tracksPerShard(8).framesPerShard(3), 8);
+	}
+
+	@Test
+	public void phylogeniesOfCutTracks() throws IOException {
+		assertIndex(TestModels.settings().frameRange(3, 8).numThreads(4), 2);
+	}
+
+	@Test
+	public void indexIsOnlyWrittenUncompressed() throws IOException {
+		File filePhylo = new File(folder.getRoot(), "tree.xml.gz");
+		new LineageExporter(TestModels.settings().writeIndex(true).format(new OutputFormat(false, true)).build())
+				.export(model, filePhylo);
+		String[] files = folder.getRoot().list();
+		Arrays.sort(files);
+		assertEquals(Arrays.asList("tree.xml.gz", "tree_meta.xml.gz"), Arrays.asList(files));
+	}
+
+}
@@ -0,0 +1,100 @@
+package vizardous.trackmate.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Model;
+
+/**
+ * Checks how the temporary files of an export are moved to their targets or
+ * removed.
+ */
+public class ExportRunTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Model model = TestModels.lineages(5, 10, 8);
+
+	@Test
+	public void phyloXMLIsMovedLast() throws IOException {
+		File expected = new File(folder.getRoot(), "expected.xml");
+		new LineageExporter(TestModels.settings().build()).export(model, expected);
+
+		// A folder cannot be replaced by the phyloXML
+		File filePhylo = new File(folder.getRoot(), "blocked.xml");
+		assertTrue(new File(filePhylo, "content").mkdirs());
+		try {
+			new LineageExporter(TestModels.settings().build()).export(model, filePhylo);
+			fail("The phyloXML has replaced a folder");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(LineageExporter.getMetaFile(filePhylo).getAbsolutePath()));
+		}
+
+		assertTrue(filePhylo.isDirectory());
+		assertArrayEquals(TestModels.read(LineageExporter.getMetaFile(expected)),
+				TestModels.read(LineageExporter.getMetaFile(filePhylo)));
+		// No temporary files are left
+		assertEquals(4, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void cancelRemovesTemporaryFiles() throws Exception {
+		final Model large = TestModels.lineages(7, 300, 30);
+		final File filePhylo = new File(folder.getRoot(), "canceled.xml");
+		new LineageExporter(TestModels.settings().build()).export(model, filePhylo);
+		final byte[] previous = TestModels.read(filePhylo);
+
+		final IOException[] failure = new IOException[1];
+		Thread export = new Thread() {
+			@Override
+			public void run() {
+				try {
+					new LineageExporter(TestModels.settings().incremental(true).numThreads(4).build()).export(large, filePhylo);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			}
+		};
+		export.start();
+
+		// Cancel as soon as the writers have opened their files
+		while (export.isAlive() && !hasTemporaryFiles()) {
+			Thread.sleep(1);
+		}
+		export.interrupt();
+		export.join();
+
+		assertTrue("The export has not been canceled", failure[0] instanceof InterruptedIOException);
+		assertEquals(Arrays.asList("canceled.xml", "canceled_meta.xml"), sortedFiles());
+		assertArrayEquals(previous, TestModels.read(filePhylo));
+	}
+
+	private boolean hasTemporaryFiles() {
+		for (String file : folder.getRoot().list()) {
+			if (file.endsWith(".tmp")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private List<String> sortedFiles() {
+		String[] files = folder.getRoot().list();
+		Arrays.sort(files);
+		return Arrays.asList(files);
+	}
+
+}
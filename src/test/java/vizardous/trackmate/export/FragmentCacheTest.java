@@ -0,0 +1,191 @@
+package vizardous.trackmate.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Logger;
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+import fiji.plugin.trackmate.TrackModel;
+
+/**
+ * Checks that an incremental export, which splices the cached fragments of
+ * unchanged tracks, equals a fresh export, and that a damaged cache is
+ * discarded.
+ */
+public class FragmentCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Model model = TestModels.lineages(3, 20, 12);
+
+	/**
+	 * Exports the model and returns the log of the export.
+	 */
+	private String export(final File filePhylo, final boolean incremental) throws IOException {
+		final StringBuilder log = new StringBuilder();
+		Logger logger = new Logger() {
+			@Override
+			public void log(String message, Color color) {
+				log.append(message);
+			}
+
+			@Override
+			public void error(String message) {
+				log.append(message);
+			}
+
+			@Override
+			public void setProgress(double progress) {
+			}
+
+			@Override
+			public void setStatus(String status) {
+			}
+		};
+		new LineageExporter(TestModels.settings().incremental(incremental).build()).export(model, filePhylo, logger);
+		return log.toString();
+	}
+
+	/**
+	 * Compares an incremental export with a fresh export of the same model.
+	 */
+	private void assertSameAsFresh(final File incremental) throws IOException {
+		File fresh = new File(folder.getRoot(), "fresh.xml");
+		export(fresh, false);
+		assertArrayEquals(TestModels.read(fresh), TestModels.read(incremental));
+		assertArrayEquals(TestModels.read(LineageExporter.getMetaFile(fresh)),
+				TestModels.read(LineageExporter.getMetaFile(incremental)));
+	}
+
+	/**
+	 * Adds a cell to the end of the first track, which shifts the cell IDs of
+	 * all following tracks.
+	 */
+	private void extendFirstTrack() {
+		TrackModel trackModel = model.getTrackModel();
+		Integer trackID = trackModel.trackIDs(true).iterator().next();
+		Spot leaf = null;
+		for (Spot spot : trackModel.trackSpots(trackID)) {
+			if (leaf == null || spot.getFeature(Spot.FRAME) > leaf.getFeature(Spot.FRAME)) {
+				leaf = spot;
+			}
+		}
+
+		model.beginUpdate();
+		try {
+			Spot child = new Spot(leaf.getFeature(Spot.POSITION_X), leaf.getFeature(Spot.POSITION_Y), 0.0d, 1.0d, 1.0d);
+			child.putFeature("LENGTH", 2.5d);
+			child.putFeature("AREA", 4.5d);
+			child.putFeature("YFP_MEAN", 150.0d);
+			child.putFeature("YFP_STDDEV", 0.5d);
+			model.addSpotTo(child, leaf.getFeature(Spot.FRAME).intValue() + 1);
+			model.addEdge(leaf, child, 1.0d);
+		} finally {
+			model.endUpdate();
+		}
+		model.getSpots().setVisible(true);
+	}
+
+	/**
+	 * Exports the model incrementally, damages the cache and exports it again.
+	 */
+	private void assertDamagedCacheIsDiscarded(final long position, final long value, final boolean isInt) throws IOException {
+		File filePhylo = new File(folder.getRoot(), "cached.xml");
+		export(filePhylo, true);
+
+		RandomAccessFile cache = new RandomAccessFile(FragmentCache.getCacheFile(filePhylo), "rw");
+		try {
+			cache.seek(position < 0 ? cache.length() + position : indexOffset(cache) + position);
+			if (isInt) {
+				cache.writeInt((int) value);
+			} else {
+				cache.writeLong(value);
+			}
+		} finally {
+			cache.close();
+		}
+
+		String log = export(filePhylo, true);
+		assertTrue(log, log.contains("Reused 0 unchanged tracks"));
+		assertSameAsFresh(filePhylo);
+	}
+
+	private static long indexOffset(final RandomAccessFile cache) throws IOException {
+		cache.seek(cache.length() - 8);
+		return cache.readLong();
+	}
+
+	@Test
+	public void unchangedModel() throws IOException {
+		File filePhylo = new File(folder.getRoot(), "cached.xml");
+		export(filePhylo, true);
+		String log = export(filePhylo, true);
+		assertTrue(log, log.contains("Reused 20 unchanged tracks"));
+		assertSameAsFresh(filePhylo);
+	}
+
+	@Test
+	public void shiftedCellIDs() throws IOException {
+		File filePhylo = new File(folder.getRoot(), "cached.xml");
+		export(filePhylo, true);
+		extendFirstTrack();
+		String log = export(filePhylo, true);
+		assertTrue(log, log.contains("Reused 19 unchanged tracks"));
+		assertSameAsFresh(filePhylo);
+	}
+
+	@Test
+	public void hugeCount() throws IOException {
+		assertDamagedCacheIsDiscarded(0, Integer.MAX_VALUE, true);
+	}
+
+	@Test
+	public void negativeCount() throws IOException {
+		assertDamagedCacheIsDiscarded(0, -1, true);
+	}
+
+	@Test
+	public void smallerCount() throws IOException {
+		assertDamagedCacheIsDiscarded(0, 1, true);
+	}
+
+	@Test
+	public void fragmentBeyondIndex() throws IOException {
+		// The offset of the first entry, after its root ID and fingerprint
+		assertDamagedCacheIsDiscarded(16, Long.MAX_VALUE / 2, false);
+	}
+
+	@Test
+	public void indexOffsetBeyondFile() throws IOException {
+		assertDamagedCacheIsDiscarded(-8, Long.MAX_VALUE, false);
+	}
+
+	@Test
+	public void truncatedCache() throws IOException {
+		File filePhylo = new File(folder.getRoot(), "cached.xml");
+		export(filePhylo, true);
+
+		RandomAccessFile cache = new RandomAccessFile(FragmentCache.getCacheFile(filePhylo), "rw");
+		try {
+			cache.setLength(cache.length() / 2);
+		} finally {
+			cache.close();
+		}
+
+		String log = export(filePhylo, true);
+		assertTrue(log, log.contains("Reused 0 unchanged tracks"));
+		assertSameAsFresh(filePhylo);
+	}
+
+}
@@ -0,0 +1,72 @@
+package vizardous.trackmate.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import fiji.plugin.trackmate.Model;
+
+/**
+ * Checks that spilling the frames to runs does not change the export.
+ */
+public class FrameSpoolTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Model model = TestModels.lineages(1, 40, 20);
+
+	private File export(final String name, final ExportSettings.Builder settings) throws IOException {
+		File filePhylo = new File(folder.getRoot(), name + ".xml");
+		new LineageExporter(settings.build()).export(model, filePhylo);
+		return filePhylo;
+	}
+
+	private static void assertSameExport(final File expected, final File actual) throws IOException {
+		assertArrayEquals(TestModels.read(expected), TestModels.read(actual));
+		assertArrayEquals(TestModels.read(LineageExporter.getMetaFile(expected)),
+				TestModels.read(LineageExporter.getMetaFile(actual)));
+	}
+
+	@Test
+	public void tinyBudget() throws IOException {
+		File plain = export("plain", TestModels.settings());
+		// Every merged track spills, which exceeds the limit of runs
+		File spilled = export("spilled", TestModels.settings().memoryBudget(1));
+		assertSameExport(plain, spilled);
+	}
+
+	@Test
+	public void tinyBudgetConcurrently() throws IOException {
+		File plain = export("plain", TestModels.settings());
+		File spilled = export("spilled", TestModels.settings().memoryBudget(1).numThreads(4));
+		assertSameExport(plain, spilled);
+	}
+
+	@Test
+	public void tinyBudgetSharded() throws IOException {
+		File plain = export("plain", TestModels.settings().framesPerShard(3));
+		File spilled = export("spilled", TestModels.settings().framesPerShard(3).memoryBudget(1).numThreads(4));
+		for (int shard = 0; shard < 7; shard++) {
+			assertArrayEquals(TestModels.read(ShardManifest.getMetaShardFile(plain, shard)),
+					TestModels.read(ShardManifest.getMetaShardFile(spilled, shard)));
+		}
+		assertArrayEquals(TestModels.read(plain), TestModels.read(spilled));
+	}
+
+	@Test
+	public void runsAreDeleted() throws IOException {
+		export("spilled", TestModels.settings().memoryBudget(1));
+		String[] files = folder.getRoot().list();
+		for (String file : files) {
+			assertEquals("Leftover run " + file, false, file.endsWith(".run"));
+		}
+	}
+
+}
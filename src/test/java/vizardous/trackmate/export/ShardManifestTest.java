@@ -0,0 +1,110 @@
+package vizardous.trackmate.export;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import fiji.plugin.trackmate.Model;
+
+/**
+ * Checks the boundaries of the shards, their manifest and the removal of the
+ * shards of a previous export.
+ */
+public class ShardManifestTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Model model = TestModels.lineages(19, 30, 10);
+
+	private File export(final ExportSettings.Builder settings) throws Exception {
+		File filePhylo = new File(folder.getRoot(), "tree.xml");
+		new LineageExporter(settings.build()).export(model, filePhylo);
+		return filePhylo;
+	}
+
+	private static Document parse(final File file) throws Exception {
+		return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+	}
+
+	private static int count(final File file, final String element) throws Exception {
+		return parse(file).getElementsByTagName(element).getLength();
+	}
+
+	private static int attribute(final Element element, final String name) {
+		return Integer.parseInt(element.getAttribute(name));
+	}
+
+	private String[] files() {
+		String[] files = folder.getRoot().list();
+		Arrays.sort(files);
+		return files;
+	}
+
+	@Test
+	public void shardBoundaries() throws Exception {
+		File filePhylo = export(TestModels.settings().tracksPerShard(7).framesPerShard(4));
+		Document manifest = parse(ShardManifest.getManifestFile(filePhylo));
+		assertEquals(30, attribute(manifest.getDocumentElement(), "tracks"));
+
+		// Full shards of 7 tracks and the remainder, with consecutive cell IDs
+		NodeList phyloShards = manifest.getElementsByTagName("phyloxml");
+		assertEquals(5, phyloShards.getLength());
+		int nextCell = 0;
+		for (int i = 0; i < phyloShards.getLength(); i++) {
+			Element shard = (Element) phyloShards.item(i);
+			File file = ShardManifest.getPhyloShardFile(filePhylo, i);
+			assertEquals(file.getName(), shard.getAttribute("file"));
+			assertEquals(i < 4 ? 7 : 2, attribute(shard, "tracks"));
+			assertEquals(attribute(shard, "tracks"), count(file, "phylogeny"));
+			assertEquals(nextCell, attribute(shard, "firstCell"));
+			nextCell = attribute(shard, "lastCell") + 1;
+			assertEquals(file.length(), Long.parseLong(shard.getAttribute("bytes")));
+		}
+		assertEquals(attribute(manifest.getDocumentElement(), "cells"), nextCell);
+
+		// Shard k holds the frames 4k to 4k + 3
+		NodeList metaShards = manifest.getElementsByTagName("metaxml");
+		assertEquals(3, metaShards.getLength());
+		for (int i = 0; i < metaShards.getLength(); i++) {
+			Element shard = (Element) metaShards.item(i);
+			File file = ShardManifest.getMetaShardFile(filePhylo, i);
+			assertEquals(file.getName(), shard.getAttribute("file"));
+			assertEquals(4 * i, attribute(shard, "firstFrame"));
+			assertEquals(Math.min(4 * i + 3, 9), attribute(shard, "lastFrame"));
+			NodeList frames = parse(file).getElementsByTagName("frame");
+			assertEquals(attribute(shard, "frames"), frames.getLength());
+			for (int f = 0; f < frames.getLength(); f++) {
+				int frame = attribute((Element) frames.item(f), "id");
+				assertTrue(frame >= 4 * i && frame <= 4 * i + 3);
+			}
+		}
+	}
+
+	@Test
+	public void fewerShardsRemoveStaleShards() throws Exception {
+		export(TestModels.settings().tracksPerShard(7).framesPerShard(4));
+		export(TestModels.settings().tracksPerShard(15).framesPerShard(5));
+		assertEquals(Arrays.asList("tree_manifest.xml", "tree_meta_frames-0000.xml", "tree_meta_frames-0001.xml",
+				"tree_tracks-0000.xml", "tree_tracks-0001.xml"), Arrays.asList(files()));
+	}
+
+	@Test
+	public void unshardedExportRemovesShards() throws Exception {
+		export(TestModels.settings().tracksPerShard(7).framesPerShard(4));
+		export(TestModels.settings());
+		assertEquals(Arrays.asList("tree.xml", "tree_meta.xml"), Arrays.asList(files()));
+	}
+
+}
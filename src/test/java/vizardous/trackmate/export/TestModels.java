@@ -0,0 +1,104 @@
+package vizardous.trackmate.export;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import fiji.plugin.trackmate.Model;
+import fiji.plugin.trackmate.Spot;
+
+/**
+ * Random lineages and helpers that are shared by the tests of the export.
+ */
+final class TestModels {
+
+	/** The mapping of the features that {@link #lineages} sets */
+	static final FeatureMapping MAPPING = new FeatureMapping()
+			.addScalar("length", "um", 2, "LENGTH")
+			.addScalar("area", "um^2", 2, "AREA")
+			.addChannel("yfp", "au", 2, new String[] { "YFP_MEAN" }, 4, "YFP_STDDEV");
+
+	private TestModels() {
+		// Utility class
+	}
+
+	/**
+	 * Builds a model of tracks that start in the first frame and whose cells
+	 * divide at random.
+	 *
+	 * @param seed
+	 *            The seed of the random positions, features and divisions
+	 * @param nTracks
+	 *            The number of tracks
+	 * @param nFrames
+	 *            The number of frames
+	 * @return The model, all of whose Spots and tracks are visible.
+	 */
+	static Model lineages(final long seed, final int nTracks, final int nFrames) {
+		Random random = new Random(seed);
+		Model model = new Model();
+		model.beginUpdate();
+		try {
+			for (int t = 0; t < nTracks; t++) {
+				List<Spot> leaves = new ArrayList<Spot>();
+				leaves.add(addSpot(model, random, 0));
+				for (int frame = 1; frame < nFrames; frame++) {
+					List<Spot> next = new ArrayList<Spot>();
+					for (Spot parent : leaves) {
+						int children = random.nextInt(6) == 0 && leaves.size() < 16 ? 2 : 1;
+						for (int c = 0; c < children; c++) {
+							Spot child = addSpot(model, random, frame);
+							model.addEdge(parent, child, 1.0d);
+							next.add(child);
+						}
+					}
+					leaves = next;
+				}
+			}
+		} finally {
+			model.endUpdate();
+		}
+		model.getSpots().setVisible(true);
+		return model;
+	}
+
+	private static Spot addSpot(final Model model, final Random random, final int frame) {
+		Spot spot = new Spot(100 * random.nextDouble(), 100 * random.nextDouble(), 0.0d, 1.0d, 1.0d);
+		spot.putFeature("LENGTH", 5 * random.nextDouble());
+		spot.putFeature("AREA", 9 * random.nextDouble());
+		spot.putFeature("YFP_MEAN", 300 * random.nextDouble());
+		spot.putFeature("YFP_STDDEV", random.nextDouble());
+		return model.addSpotTo(spot, frame);
+	}
+
+	/**
+	 * @return The settings of a plain export of the {@link #MAPPING}.
+	 */
+	static ExportSettings.Builder settings() {
+		return new ExportSettings.Builder().projectName("test").featureMapping(MAPPING);
+	}
+
+	/**
+	 * @return The content of a file.
+	 */
+	static byte[] read(final File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1 << 14];
+			int length;
+			while ((length = in.read(buffer)) > 0) {
+				out.write(buffer, 0, length);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+}
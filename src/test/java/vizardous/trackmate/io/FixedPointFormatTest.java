@@ -0,0 +1,116 @@
+package vizardous.trackmate.io;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link FixedPointFormat} with {@link String#format} for the
+ * precisions of the export and for values that take the slow path.
+ */
+public class FixedPointFormatTest {
+
+	private static final int[] PRECISIONS = { 0, 2, 4 };
+
+	private static String format(final double value, final int precision) throws IOException {
+		StringBuilder out = new StringBuilder();
+		FixedPointFormat.append(out, value, precision);
+		return out.toString();
+	}
+
+	private static void assertFormat(final double value, final int precision) throws IOException {
+		String expected = String.format(Locale.US, "%." + precision + "f", value);
+		assertEquals("Value " + value + " with precision " + precision, expected, format(value, precision));
+	}
+
+	@Test
+	public void randomValues() throws IOException {
+		Random random = new Random(42);
+		for (int precision : PRECISIONS) {
+			for (int exponent = -6; exponent <= 15; exponent++) {
+				double magnitude = Math.pow(10, exponent);
+				for (int i = 0; i < 2000; i++) {
+					double value = random.nextDouble() * magnitude;
+					assertFormat(value, precision);
+					assertFormat(-value, precision);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void halfWayTies() throws IOException {
+		for (int precision : PRECISIONS) {
+			double step = Math.pow(10, -precision);
+			for (int i = 0; i < 1000; i++) {
+				double tie = (i + 0.5d) * step;
+				assertFormat(tie, precision);
+				assertFormat(-tie, precision);
+				assertFormat(Math.nextUp(tie), precision);
+				assertFormat(Math.nextAfter(tie, 0d), precision);
+			}
+			// Ties that are not exact in binary
+			assertFormat(0.125d, precision);
+			assertFormat(0.375d, precision);
+			assertFormat(1.005d, precision);
+			assertFormat(2.675d, precision);
+			assertFormat(1.00005d, precision);
+		}
+	}
+
+	@Test
+	public void signedZeros() throws IOException {
+		for (int precision : PRECISIONS) {
+			assertFormat(0.0d, precision);
+			assertFormat(-0.0d, precision);
+			// Negative values that round to zero keep their sign
+			assertFormat(-0.0001d, precision);
+			assertFormat(-1e-12d, precision);
+		}
+	}
+
+	@Test
+	public void nonFiniteValues() throws IOException {
+		for (int precision : PRECISIONS) {
+			assertFormat(Double.NaN, precision);
+			assertFormat(Double.POSITIVE_INFINITY, precision);
+			assertFormat(Double.NEGATIVE_INFINITY, precision);
+		}
+	}
+
+	@Test
+	public void largeValues() throws IOException {
+		// The fast path is limited to scaled values below 2^52
+		for (int precision : PRECISIONS) {
+			double limit = (1L << 52) / Math.pow(10, precision);
+			assertFormat(Math.nextAfter(limit, 0d), precision);
+			assertFormat(limit, precision);
+			assertFormat(Math.nextUp(limit), precision);
+			assertFormat(-limit, precision);
+			assertFormat(1e17d, precision);
+			assertFormat(Double.MAX_VALUE, precision);
+			assertFormat(Long.MAX_VALUE, precision);
+		}
+	}
+
+	@Test
+	public void integers() throws IOException {
+		long[] values = { 0L, 7L, -7L, 999999999999999999L, 1000000000000000000L, -1000000000000000000L,
+				Long.MAX_VALUE, Long.MIN_VALUE };
+		for (long value : values) {
+			StringBuilder out = new StringBuilder();
+			FixedPointFormat.appendInteger(out, value);
+			assertEquals(Long.toString(value), out.toString());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unsupportedPrecision() throws IOException {
+		FixedPointFormat.append(new StringBuilder(), 1.0d, FixedPointFormat.MAX_PRECISION + 1);
+	}
+
+}
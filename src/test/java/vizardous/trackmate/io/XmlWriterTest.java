@@ -0,0 +1,170 @@
+package vizardous.trackmate.io;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.output.Format;
+import org.jdom2.output.XMLOutputter;
+import org.junit.Test;
+
+/**
+ * Compares the output of {@link XmlWriter} with JDOM's {@link XMLOutputter}
+ * in the pretty format, which wrote the exports of previous versions.
+ */
+public class XmlWriterTest {
+
+	private static final String ESCAPED = "a < b && c > \"d\" 'e'\tf\r\ng\rh\ni";
+
+	private static String jdom(final Element root) {
+		return new XMLOutputter(Format.getPrettyFormat()).outputString(new Document(root));
+	}
+
+	private static String write(final Writing writing) throws IOException {
+		StringBuilder out = new StringBuilder();
+		XmlWriter writer = new XmlWriter(out);
+		writer.writeDeclaration();
+		writing.write(writer);
+		writer.endDocument();
+		return out.toString();
+	}
+
+	private interface Writing {
+		void write(XmlWriter writer) throws IOException;
+	}
+
+	@Test
+	public void nestedElements() throws IOException {
+		Element root = new Element("phyloxml");
+		Element phylogeny = new Element("phylogeny");
+		phylogeny.setAttribute("rooted", "true");
+		root.addContent(phylogeny);
+		Element clade = new Element("clade");
+		clade.addContent(new Element("name").setText("17"));
+		clade.addContent(new Element("branch_length").setText("1.0"));
+		clade.addContent(new Element("clade").addContent(new Element("name").setText("18")));
+		phylogeny.addContent(clade);
+
+		String written = write(new Writing() {
+			@Override
+			public void write(XmlWriter writer) throws IOException {
+				writer.startElement("phyloxml");
+				writer.startElement("phylogeny").attribute("rooted", "true");
+				writer.startElement("clade");
+				writer.startElement("name").text(17).endElement();
+				writer.textElement("branch_length", "1.0");
+				writer.startElement("clade").startElement("name").text(18).endElement().endElement();
+				writer.endElement();
+				writer.endElement();
+			}
+		});
+		assertEquals(jdom(root), written);
+	}
+
+	@Test
+	public void emptyElements() throws IOException {
+		Element root = new Element("metaInformation");
+		root.addContent(new Element("empty"));
+		root.addContent(new Element("blank").setText(" \t\r\n "));
+		root.addContent(new Element("attributed").setAttribute("id", "3"));
+
+		String written = write(new Writing() {
+			@Override
+			public void write(XmlWriter writer) throws IOException {
+				writer.startElement("metaInformation");
+				writer.startElement("empty").endElement();
+				writer.textElement("blank", " \t\r\n ");
+				writer.startElement("attributed").attribute("id", 3).endElement();
+			}
+		});
+		assertEquals(jdom(root), written);
+	}
+
+	@Test
+	public void escapedText() throws IOException {
+		Element root = new Element("root");
+		root.addContent(new Element("text").setText(ESCAPED));
+		root.addContent(new Element("trimmed").setText("  \t" + ESCAPED + "\r\n  "));
+		root.addContent(new Element("unicode").setText("\u00b5m \u2013 \ud83d\udd2c"));
+
+		String written = write(new Writing() {
+			@Override
+			public void write(XmlWriter writer) throws IOException {
+				writer.startElement("root");
+				writer.textElement("text", ESCAPED);
+				writer.textElement("trimmed", "  \t" + ESCAPED + "\r\n  ");
+				writer.textElement("unicode", "\u00b5m \u2013 \ud83d\udd2c");
+			}
+		});
+		assertEquals(jdom(root), written);
+	}
+
+	@Test
+	public void escapedAttributes() throws IOException {
+		Element root = new Element("root");
+		root.setAttribute("name", ESCAPED);
+		root.setAttribute("blank", "  padded  ");
+		root.addContent(new Element("unit").setAttribute("unit", "\u00b5m^2"));
+
+		String written = write(new Writing() {
+			@Override
+			public void write(XmlWriter writer) throws IOException {
+				writer.startElement("root").attribute("name", ESCAPED).attribute("blank", "  padded  ");
+				writer.startElement("unit").attribute("unit", "\u00b5m^2").endElement();
+			}
+		});
+		assertEquals(jdom(root), written);
+	}
+
+	@Test
+	public void numbers() throws IOException {
+		final double[] values = { 0.0d, -0.0d, 1.005d, 2.5d, -3.14159d, 123456.789d };
+		Element root = new Element("frame");
+		for (double value : values) {
+			root.addContent(new Element("x").setAttribute("unit", "um")
+					.setText(String.format(Locale.US, "%.2f", value)));
+			root.addContent(new Element("elapsedTime").setText(String.format(Locale.US, "%.0f", value)));
+		}
+
+		String written = write(new Writing() {
+			@Override
+			public void write(XmlWriter writer) throws IOException {
+				writer.startElement("frame");
+				for (double value : values) {
+					writer.startElement("x").attribute("unit", "um").text(value, 2).endElement();
+					writer.startElement("elapsedTime").text(value, 0).endElement();
+				}
+			}
+		});
+		assertEquals(jdom(root), written);
+	}
+
+	@Test
+	public void fragments() throws IOException {
+		// A fragment that is written one level deeper is spliced in place
+		StringBuilder fragment = new StringBuilder();
+		XmlWriter cells = new XmlWriter(fragment, 1);
+		cells.startElement("cell").attribute("id", 1);
+		cells.textElement("length", ESCAPED);
+		cells.endElement();
+		cells.startElement("cell").attribute("id", 2).endElement();
+		cells.endDocument();
+
+		StringBuilder spliced = new StringBuilder();
+		XmlWriter writer = new XmlWriter(spliced);
+		writer.writeDeclaration();
+		writer.startElement("frame").fragment(fragment);
+		writer.endDocument();
+
+		Element root = new Element("frame");
+		Element first = new Element("cell").setAttribute("id", "1");
+		first.addContent(new Element("length").setText(ESCAPED));
+		root.addContent(first);
+		root.addContent(new Element("cell").setAttribute("id", "2"));
+		assertEquals(jdom(root), spliced.toString());
+	}
+
+}